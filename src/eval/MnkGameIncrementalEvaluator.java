@@ -0,0 +1,137 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package eval;
+
+import game.MnkGame;
+import game.MnkGameGeometry;
+
+/**
+ * The MnkGameIncrementalEvaluator class scores lines like the line
+ * evaluator, but keeps the score up to date move by move instead of
+ * rescanning the board.
+ * <p>
+ * The evaluator counts each player's pieces in every k-length window of
+ * every row, column, diagonal and anti-diagonal, and keeps the score of
+ * every line and their sum. A move only changes the windows through its
+ * square, so only the (at most four) lines through it are rescored.
+ * <p>
+ * The evaluator follows the game lazily: when asked for a score, it takes
+ * back the moves it has applied down to the last position the game's
+ * history shares with them, found by the positions' hashes, then applies
+ * the game's moves since. In a search, that is a few moves per leaf, so
+ * evaluating takes time independent of the board size, nothing is
+ * allocated, and the game needs no hooks for its evaluators.
+ */
+public class MnkGameIncrementalEvaluator extends MnkGameLineEvaluator {
+
+  private final MnkGameGeometry geometry; // lines and their windows
+
+  private final int[] p1Counts; // per window
+  private final int[] p2Counts;
+  private final int[] lineScores;
+  private int score;
+
+  // moves applied so far, with the game's hash after each number of them
+  private final int[] moves;
+  private final int[] players;
+  private final long[] hashes;
+  private int numMoves;
+
+  // scratch space for scoring a line
+  private final int[] p1Score, p2Score, p1MaxScore, p2MaxScore;
+
+
+  public MnkGameIncrementalEvaluator(MnkGame game) {
+    super(game);
+    int k = game.getK();
+    int squares = game.getSquares();
+    geometry = game.getGeometry();
+    int numLines = geometry.getLines();
+    int maxLength = 0;
+    for (int line = 0; line < numLines; line++)
+      maxLength = Math.max(maxLength, geometry.getLineLength(line));
+
+    p1Counts = new int[geometry.getWindows()];
+    p2Counts = new int[geometry.getWindows()];
+    lineScores = new int[numLines];
+    int maxWindows = Math.max(maxLength - k + 1, 0);
+    p1Score = new int[maxWindows];
+    p2Score = new int[maxWindows];
+    p1MaxScore = new int[maxWindows];
+    p2MaxScore = new int[maxWindows];
+    moves = new int[squares];
+    players = new int[squares];
+    hashes = new long[squares + 1];
+    hashes[0] = game.getHistoryHash(0); // lines of the empty board score 0
+  }
+
+
+  @Override
+  public int evaluate() {
+    MnkGame g = getGame();
+    if (g.isGameOver())
+      return super.evaluate();
+    sync();
+    return score;
+  }
+
+
+  /* Brings the counts to the game's position: takes back the moves applied
+   * after the last position the game also reached, then applies the
+   * game's moves since. */
+  private void sync() {
+    MnkGame g = getGame();
+    int ply = g.getElapsedPly();
+    int common = Math.min(numMoves, ply);
+    while (common > 0 && hashes[common] != g.getHistoryHash(common))
+      common--;
+    while (numMoves > common) {
+      numMoves--;
+      update(moves[numMoves], players[numMoves], -1);
+    }
+    while (numMoves < ply) {
+      int square = g.getHistory(numMoves);
+      int player = g.getPiece(square);
+      update(square, player, 1);
+      moves[numMoves] = square;
+      players[numMoves] = player;
+      numMoves++;
+      hashes[numMoves] = g.getHistoryHash(numMoves);
+    }
+  }
+
+  /* Adds (or removes) a player's piece at the square to the windows
+   * through it, and rescores their lines. */
+  private void update(int square, int player, int delta) {
+    int k = getGame().getK();
+    int[] counts = (player == MnkGame.PLAYER_1) ? p1Counts : p2Counts;
+    for (int d = 0; d < MnkGameGeometry.DIRECTIONS; d++) {
+      int line = geometry.getLine(square, d);
+      if (line < 0)
+        continue;
+      int index = geometry.getLineIndex(square, d);
+      int first = geometry.getLineWindow(line);
+      int last = first + Math.min(index, geometry.getLineLength(line) - k);
+      for (int w = first + Math.max(index - k + 1, 0); w <= last; w++)
+        counts[w] += delta;
+      int lineScore = evaluateLine(line);
+      score += lineScore - lineScores[line];
+      lineScores[line] = lineScore;
+    }
+  }
+
+  /* Scores a line from the counts of its windows, as the line evaluator
+   * does from its pieces. */
+  private int evaluateLine(int line) {
+    int windows = geometry.getLineLength(line) - getGame().getK() + 1;
+    int first = geometry.getLineWindow(line);
+    for (int i = 0; i < windows; i++) {
+      int p1 = p1Counts[first + i];
+      int p2 = p2Counts[first + i];
+      p1Score[i] = (p2 <= 0) ? (1 << p1) - 1 : 0;
+      p2Score[i] = (p1 <= 0) ? (1 << p2) - 1 : 0;
+    }
+    return evaluateWindows(p1Score, p2Score, windows, p1MaxScore, p2MaxScore);
+  }
+}
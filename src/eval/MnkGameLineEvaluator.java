@@ -66,16 +66,24 @@ public class MnkGameLineEvaluator extends MnkGameBasicEvaluator {
       }
     }
 
-    int[] p1MaxScore = new int[p1Score.length];
-    int[] p2MaxScore = new int[p2Score.length];
-    for (int i = p1MaxScore.length - 1; i >= 0; i--) {
+    return evaluateWindows(p1Score, p2Score, p1Score.length,
+        new int[p1Score.length], new int[p2Score.length]);
+  }
+
+  /* Scores a line from the scores of its k-length windows, by the best
+   * sums of windows that do not overlap, for each player. The max score
+   * arrays are scratch space, at least as long as the windows. */
+  protected final int evaluateWindows(int[] p1Score, int[] p2Score,
+      int windows, int[] p1MaxScore, int[] p2MaxScore) {
+    int k = getGame().getK();
+    for (int i = windows - 1; i >= 0; i--) {
       p1MaxScore[i] = p1Score[i];
       p2MaxScore[i] = p2Score[i];
-      if (i < p1MaxScore.length - 1 - k) {
+      if (i < windows - 1 - k) {
         p1MaxScore[i] += p1MaxScore[i + k];
         p2MaxScore[i] += p2MaxScore[i + k];
       }
-      for (int j = 1; j < Math.min(k, p1MaxScore.length - i); j++) {
+      for (int j = 1; j < Math.min(k, windows - i); j++) {
         if (p1MaxScore[i] < p1MaxScore[i + j])
           p1MaxScore[i] = p1MaxScore[i + j];
         if (p2MaxScore[i] < p2MaxScore[i + j])
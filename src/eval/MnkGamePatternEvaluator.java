@@ -0,0 +1,134 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package eval;
+
+import game.MnkGame;
+import game.MnkGameGeometry;
+
+/**
+ * The MnkGamePatternEvaluator class scores every k-length window of the
+ * board by looking up its pattern of pieces in a table.
+ * <p>
+ * A window's pattern is its pieces read as a base-3 number, one digit per
+ * square (0 for empty, 1 for player 1, 2 for player 2). Moving along a
+ * line, the next window's number is the last's, less the digit of the
+ * square left behind, times 3, plus the digit of the new square; so each
+ * square is read once per line, and scored without counting or branching
+ * on the pieces. A window that only one player has pieces in scores
+ * 2<sup>c</sup> - 1 for their c pieces, for or against player 1, and any
+ * other window 0; the score is the sum over all windows.
+ * <p>
+ * Tables have 3<sup>k</sup> entries. They are built once per k and shared
+ * by all evaluators, up to {@link #MAX_K}; longer windows are scored by
+ * counting their pieces instead.
+ */
+public class MnkGamePatternEvaluator extends MnkGameBasicEvaluator {
+
+  /** Greatest k with a pattern table. */
+  public static final int MAX_K = 12;
+
+  private static final int[] DIGITS = {2, 0, 1}; // per piece + 1
+
+  private static final int[][] tables = new int[MAX_K + 1][];
+
+
+  private final int[] table; // null if k is too great
+  private final int top; // place value of the first square of a window
+  private final MnkGameGeometry geometry; // lines of at least k squares
+
+
+  public MnkGamePatternEvaluator(MnkGame game) {
+    super(game);
+    int k = game.getK();
+    table = (k <= MAX_K) ? getTable(k) : null;
+    top = (table != null) ? table.length / 3 : 0;
+    geometry = game.getGeometry();
+  }
+
+
+  @Override
+  public int evaluate() {
+    MnkGame g = getGame();
+    if (g.isGameOver())
+      return super.evaluate();
+    if (table == null)
+      return evaluateByCounts();
+    int k = g.getK();
+    int score = 0;
+    for (int line = 0; line < geometry.getLines(); line++) {
+      int length = geometry.getLineLength(line);
+      int pattern = 0;
+      for (int i = 0; i < k - 1; i++)
+        pattern = pattern * 3 + digit(geometry.getLineSquare(line, i));
+      for (int i = k - 1; i < length; i++) {
+        pattern = pattern * 3 + digit(geometry.getLineSquare(line, i));
+        score += table[pattern];
+        pattern -= digit(geometry.getLineSquare(line, i - k + 1)) * top;
+      }
+    }
+    return score;
+  }
+
+
+  /* Scores the windows by counting their pieces, if k is too great for a
+   * table. */
+  private int evaluateByCounts() {
+    MnkGame g = getGame();
+    int k = g.getK();
+    int score = 0;
+    for (int window = 0; window < geometry.getWindows(); window++) {
+      int p1 = 0;
+      int p2 = 0;
+      for (int i = 0; i < k; i++) {
+        int piece = g.getPiece(geometry.getWindowSquare(window, i));
+        if (piece == MnkGame.PLAYER_1) {
+          p1++;
+        } else if (piece == MnkGame.PLAYER_2) {
+          p2++;
+        }
+      }
+      score += scoreWindow(p1, p2);
+    }
+    return score;
+  }
+
+  /* Gets the pattern digit of the piece on the square. */
+  private int digit(int square) {
+    return DIGITS[getGame().getPiece(square) + 1];
+  }
+
+  /* Gets the table of window scores by pattern for k, building it on first
+   * use. */
+  private static synchronized int[] getTable(int k) {
+    if (tables[k] != null)
+      return tables[k];
+    int size = 1;
+    for (int i = 0; i < k; i++)
+      size *= 3;
+    int[] table = new int[size];
+    for (int pattern = 0; pattern < size; pattern++) {
+      int p1 = 0;
+      int p2 = 0;
+      for (int rest = pattern; rest > 0; rest /= 3) {
+        if (rest % 3 == DIGITS[MnkGame.PLAYER_1 + 1]) {
+          p1++;
+        } else if (rest % 3 == DIGITS[MnkGame.PLAYER_2 + 1]) {
+          p2++;
+        }
+      }
+      table[pattern] = scoreWindow(p1, p2);
+    }
+    tables[k] = table;
+    return table;
+  }
+
+  /* Scores a window with the players' piece counts. */
+  private static int scoreWindow(int p1, int p2) {
+    if (p2 == 0)
+      return (1 << p1) - 1;
+    if (p1 == 0)
+      return -((1 << p2) - 1);
+    return 0;
+  }
+}
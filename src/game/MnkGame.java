@@ -38,11 +38,27 @@ public class MnkGame {
   private final int m, n, k; // m = cols, n = rows, k = win-in a row
   private final int p, q; // p = pieces per turn, q = pieces for first turn
   private final boolean drop; // whether pieces "drop" to lowest row
-  private final int[] board; // m x n grid as 1D array
+  private final MnkGameGeometry geometry; // lines and windows, shared
+  private final MnkGameBitboard board; // m x n grid as occupancy masks
+  private final int[] windowPieces; // p1 + p2 * (k + 1) pieces, per window
+  private final int[] counted; // placements the window counts include
+  private final int[] countedPieces; // per square, as the counts have it
+  private final int[][] winWindows; // a piece short, per side and square
+  private final int[][] winSquares; // squares with any, per side
+  private final int[][] winIndexes; // of each square in winSquares
+  private final int[] numWinSquares; // per side
   private final int[] history; // past piece placements
+  private final long[] hashHistory; // hash after each number of plies
+  private final int[] inOutOrder; // squares (or columns) in inside-out order
+  private final long[] pieceKeys; // Zobrist keys, per square and player
+  private final long[] remainingKeys; // Zobrist keys, per pieces left in turn
+  private final long turnKey; // Zobrist key for player 2 to move
 
   private int ply; // number of past piece placements
   private int turn, winner; // current player, winning player (if any)
+  private long hash; // Zobrist hash of the position
+  private int numCounted; // placements in counted
+  private int keptCounted; // of them still in the history
 
 
   // Constructors
@@ -74,11 +90,48 @@ public class MnkGame {
     this.p = p;
     this.q = q;
     this.drop = drop;
-    board = new int[n * m];
+    geometry = MnkGameGeometry.get(m, n, k);
+    board = MnkGameBitboard.create(m, n, k);
+    windowPieces = new int[geometry.getWindows()];
+    counted = new int[n * m];
+    countedPieces = new int[n * m];
+    winWindows = new int[2][n * m];
+    winSquares = new int[2][n * m];
+    winIndexes = new int[2][n * m];
+    numWinSquares = new int[2];
+    if (k == 1) { // any square wins
+      for (int window = 0; window < windowPieces.length; window++)
+        countWinWindow(0, geometry.getWindowSquare(window, 0), 1);
+    }
     history = new int[n * m]; // allocate enough for full game
+    MnkGameZobrist zobrist = MnkGameZobrist.get(m, n, p, q); // shared
+    pieceKeys = zobrist.pieceKeys;
+    remainingKeys = zobrist.remainingKeys;
+    turnKey = zobrist.turnKey;
     ply = 0;
     turn = PLAYER_1;
     winner = PLAYER_NONE;
+    hash = getStateKey();
+    hashHistory = new long[n * m + 1];
+    hashHistory[0] = hash;
+    inOutOrder = new int[drop ? m : n * m];
+    int i = 0;
+    for (int square : generateInOutPseudolegalMoves())
+      inOutOrder[i++] = square; // bottom row squares are also columns
+  }
+
+  /**
+   * Constructs a copy of a game, with the same rules and moves played.
+   * <p>
+   * The copy is independent of the original; moves played in either do
+   * not affect the other.
+   * 
+   * @param game    Game to copy
+   */
+  public MnkGame(MnkGame game) {
+    this(game.m, game.n, game.k, game.p, game.q, game.drop);
+    for (int i = 0; i < game.ply; i++)
+      doMove(game.history[i], false);
   }
 
   /**
@@ -150,11 +203,14 @@ public class MnkGame {
   public void doMove(int square, boolean checkLegal) {
     if (checkLegal && !canDoMove(square))
       throw new IllegalArgumentException("Illegal move.");
-    board[square] = turn;
-    history[ply++] = square;
+    board.set(square, turn);
     winner = calculateWinner(square);
+    hash ^= getPieceKey(square, turn) ^ getStateKey();
+    history[ply++] = square;
     if (ply >= q && (ply - q) % p == 0)
       turn = -turn;
+    hash ^= getStateKey();
+    hashHistory[ply] = hash;
   }
 
   /**
@@ -199,11 +255,14 @@ public class MnkGame {
     if (checkLegal && !canUndoMove())
       throw new IllegalArgumentException("Cannot undo any moves.");
     int index = history[ply - 1];
+    hash ^= getStateKey();
     if (ply >= q && (ply - q) % p == 0)
       turn = -turn;
     winner = PLAYER_NONE;
     ply--;
-    board[index] = PLAYER_NONE;
+    keptCounted = Math.min(keptCounted, ply);
+    board.clear(index, turn);
+    hash ^= getPieceKey(index, turn) ^ getStateKey();
   }
 
   /**
@@ -226,9 +285,10 @@ public class MnkGame {
    * @return        True if move is legal; false otherwise
    */
   public boolean canDoMove(int square) {
-    return (0 <= square && square < n * m) && (board[square] == PLAYER_NONE)
-        && (winner == PLAYER_NONE)
-        && (!drop || getRow(square) == 0 || board[square - m] != PLAYER_NONE);
+    return (0 <= square && square < n * m)
+        && (board.get(square) == PLAYER_NONE) && (winner == PLAYER_NONE)
+        && (!drop || getRow(square) == 0
+            || board.get(square - m) != PLAYER_NONE);
   }
 
   /**
@@ -366,6 +426,20 @@ public class MnkGame {
     return winner;
   }
 
+  /**
+   * Gets the Zobrist hash of the current position.
+   * <p>
+   * The hash covers the pieces on the board, the player to move, and the
+   * number of pieces they have left to place this turn. It is updated
+   * incrementally by each move and undo. Games with the same board size and
+   * turn rules use the same keys, so their hashes can be compared.
+   * 
+   * @return    64-bit hash of the position
+   */
+  public long getHash() {
+    return hash;
+  }
+
   /**
    * Gets the number of squares in the game's board.
    * 
@@ -375,6 +449,17 @@ public class MnkGame {
     return m * n;
   }
 
+  /**
+   * Gets the lines and windows of the game's board.
+   * <p>
+   * The geometry is shared by all games with the same board size and k.
+   * 
+   * @return    Geometry of the board
+   */
+  public MnkGameGeometry getGeometry() {
+    return geometry;
+  }
+
   /**
    * Gets the square corresponding to the specified row and column.
    * <p>
@@ -415,7 +500,7 @@ public class MnkGame {
   public int[] getRowSquares(int row) {
     int[] list = new int[m];
     for (int col = 0; col < m; col++)
-      list[col] = board[getSquare(row, col)];
+      list[col] = board.get(getSquare(row, col));
     return list;
   }
 
@@ -444,7 +529,7 @@ public class MnkGame {
   public int[] getColSquares(int col) {
     int[] list = new int[n];
     for (int row = 0; row < n; row++)
-      list[row] = board[getSquare(row, col)];
+      list[row] = board.get(getSquare(row, col));
     return list;
   }
 
@@ -596,7 +681,79 @@ public class MnkGame {
    *                square, or {@link #PLAYER_NONE} otherwise.
    */
   public int getPiece(int square) {
-    return board[square];
+    return board.get(square);
+  }
+
+  /**
+   * Gets the number of empty squares where a piece of the player would
+   * complete k-in-a-row, i.e. win the game.
+   * <p>
+   * The game counts each player's pieces in each window of k squares (see
+   * {@link #getGeometry()}), and the squares that would fill a window. The
+   * counts only catch up with the moves played or undone when queried, so
+   * positions that are never queried, e.g. the leaves of a search, do not
+   * pay for them; once caught up, this and the other winning square queries
+   * take constant time. (Wins themselves are found by the bitboard as each
+   * move is played.) As the queries update the counts, a game must not be
+   * queried from several threads at once.
+   * <p>
+   * For the player to move, these are the moves that win at once; for
+   * the opponent, the squares that must be blocked. A square is included
+   * even if a piece cannot be placed there yet, e.g. above the lowest empty
+   * square of its column under the drop rule.
+   * 
+   * @param player  Player to complete a line
+   * @return        Number of winning squares
+   */
+  public int getWinningSquares(int player) {
+    countWindows();
+    return numWinSquares[side(player)];
+  }
+
+  /**
+   * Gets one of the empty squares where a piece of the player would
+   * complete k-in-a-row. The squares are in no particular order.
+   * <p>
+   * See {@link #getWinningSquares(int)} for details.
+   * 
+   * @param player  Player to complete a line
+   * @param i       Index of the square, less than the number of them
+   * @return        Square index
+   */
+  public int getWinningSquare(int player, int i) {
+    countWindows();
+    return winSquares[side(player)][i];
+  }
+
+  /**
+   * Checks if a piece of the player at the specified (empty) square would
+   * complete k-in-a-row.
+   * <p>
+   * See {@link #getWinningSquares(int)} for details.
+   * 
+   * @param square  Square index
+   * @param player  Player to complete a line
+   * @return        True if the square wins for the player; false otherwise
+   */
+  public boolean isWinningSquare(int square, int player) {
+    countWindows();
+    return winWindows[side(player)][square] > 0;
+  }
+
+  /**
+   * Gets the number of the player's pieces in a window of k squares.
+   * <p>
+   * See {@link #getGeometry()} for the windows, and
+   * {@link #getWinningSquares(int)} for how they are counted.
+   * 
+   * @param window  Window index
+   * @param player  Player whose pieces to count
+   * @return        Number of pieces, from 0 to k
+   */
+  public int getWindowPieces(int window, int player) {
+    countWindows();
+    int pieces = windowPieces[window];
+    return (player == PLAYER_1) ? pieces % (k + 1) : pieces / (k + 1);
   }
 
   /**
@@ -630,6 +787,23 @@ public class MnkGame {
     return history[ply];
   }
 
+  /**
+   * Gets the Zobrist hash of the position after a number of plies of the
+   * game's history, e.g. to find where two lines of play reach the same
+   * position.
+   * <p>
+   * See {@link #getHash()} for a description of the hash.
+   * 
+   * @param ply     Number of plies into the game, at most the elapsed ply
+   * @return        64-bit hash of the position after <code>ply</code>
+   *                moves into the game
+   */
+  public long getHistoryHash(int ply) {
+    if (ply < 0 || ply > this.ply)
+      throw new IllegalArgumentException("Illegal history hash access.");
+    return hashHistory[ply];
+  }
+
   /**
    * Gets a two-dimensional array representation of the board.
    * 
@@ -639,7 +813,7 @@ public class MnkGame {
     int[][] board2d = new int[n][m];
     for (int row = 0; row < n; row++)
       for (int col = 0; col < m; col++)
-        board2d[row][col] = board[getSquare(row, col)];
+        board2d[row][col] = board.get(getSquare(row, col));
     return board2d;
   }
 
@@ -762,6 +936,33 @@ public class MnkGame {
     return drop ? genDropPseudolegalMoves() : genFullPseudolegalMoves();
   }
 
+  /**
+   * Stores all pseudo-legal moves of the current player in an array.
+   * <p>
+   * This produces the same moves, in the same order, as
+   * {@link #generatePseudolegalMoves()}, but without allocating any objects.
+   * The array must have room for {@link #getPseudolegalMoves()} moves;
+   * one of {@link #getSquares()} length always suffices.
+   * 
+   * @param moves   Array to store the moves in, starting at index 0
+   * @return        Number of moves stored
+   */
+  public int generatePseudolegalMoves(int[] moves) {
+    int count = 0;
+    if (drop) {
+      for (int col = 0; col < m; col++) {
+        int square = getDropSquare(col);
+        if (square >= 0)
+          moves[count++] = square;
+      }
+    } else {
+      for (int square = board.nextEmpty(0); square >= 0;
+           square = board.nextEmpty(square + 1))
+        moves[count++] = square;
+    }
+    return count;
+  }
+
   /**
    * Gets a generator of all pseudo-legal moves in "inside-out" order.
    * <p>
@@ -782,6 +983,35 @@ public class MnkGame {
     return drop ? genInOutDropPseudolegalMvs() : genInOutFullPseudolegalMvs();
   }
 
+  /**
+   * Stores all pseudo-legal moves in "inside-out" order in an array.
+   * <p>
+   * This produces the same moves, in the same order, as
+   * {@link #generateInOutPseudolegalMoves()}, but without allocating any
+   * objects. Unlike that method, it is not slower than
+   * {@link #generatePseudolegalMoves(int[])}, since the order is
+   * precomputed.
+   * 
+   * @param moves   Array to store the moves in, starting at index 0
+   * @return        Number of moves stored
+   */
+  public int generateInOutPseudolegalMoves(int[] moves) {
+    int count = 0;
+    if (drop) {
+      for (int col : inOutOrder) {
+        int square = getDropSquare(col);
+        if (square >= 0)
+          moves[count++] = square;
+      }
+    } else {
+      for (int square : inOutOrder) {
+        if (board.get(square) == PLAYER_NONE)
+          moves[count++] = square;
+      }
+    }
+    return count;
+  }
+
   /**
    * Gets a generator of all legal moves of the current player.
    * <p>
@@ -797,6 +1027,20 @@ public class MnkGame {
     return generatePseudolegalMoves();
   }
 
+  /**
+   * Stores all legal moves of the current player in an array.
+   * <p>
+   * See {@link #generatePseudolegalMoves(int[])} for details on the array.
+   * 
+   * @param moves   Array to store the moves in, starting at index 0
+   * @return        Number of moves stored
+   */
+  public int generateLegalMoves(int[] moves) {
+    if (winner != PLAYER_NONE)
+      return 0;
+    return generatePseudolegalMoves(moves);
+  }
+
   /**
    * Gets a generator of all legal moves in "inside-out" order.
    * <p>
@@ -817,28 +1061,136 @@ public class MnkGame {
     return generateInOutPseudolegalMoves();
   }
 
+  /**
+   * Stores all legal moves in "inside-out" order in an array.
+   * <p>
+   * See {@link #generateInOutPseudolegalMoves(int[])} for details.
+   * 
+   * @param moves   Array to store the moves in, starting at index 0
+   * @return        Number of moves stored
+   */
+  public int generateInOutLegalMoves(int[] moves) {
+    if (winner != PLAYER_NONE)
+      return 0;
+    return generateInOutPseudolegalMoves(moves);
+  }
+
 
   // Private methods
-  /* Checks if there is k-in-a-row through the square. */
+  /* Gets the player whose move at the square completed k-in-a-row, if
+   * any. */
   private int calculateWinner(int square) {
-    int row = getRow(square);
-    int col = getCol(square);
-    int[][] dirs = { {-1, 1}, {-m, m}, {-m - 1, m + 1}, {-m + 1, m - 1} };
-    int[][] lens = { {col, m - 1 - col}, {row, n - 1 - row},
-                     {Math.min(col, row), Math.min(m - 1 - col, n - 1 - row)},
-                     {Math.min(m - 1 - col, row), Math.min(col, n - 1 - row)} };
-    for (int i0 = 0; i0 < 4; i0++) {
-      int consecutive = 1;
-      for (int i1 = 0; i1 < 2; i1++) {
-        for (int index = square, j = 0; j < lens[i0][i1]; j++) {
-          if (board[(index += dirs[i0][i1])] != turn)
-            break;
-          if (++consecutive >= k)
-            return turn;
-        }
-      }
+    return board.hasLine(turn, square, k) ? turn : PLAYER_NONE;
+  }
+
+  /* Brings the window counts up to date with the history: placements
+   * counted but since undone are taken back out, latest first, then those
+   * played since are added. */
+  private void countWindows() {
+    if (numCounted == ply && keptCounted == ply)
+      return;
+    while (numCounted > keptCounted) {
+      int square = counted[--numCounted];
+      updateWindows(square, countedPieces[square], -1);
     }
-    return PLAYER_NONE;
+    while (numCounted < ply) {
+      int square = history[numCounted];
+      counted[numCounted++] = square;
+      updateWindows(square, board.get(square), 1);
+    }
+    keptCounted = ply;
+  }
+
+  /* Adds (or removes) a player's piece at the square to the counts of the
+   * windows through it. */
+  private void updateWindows(int square, int player, int delta) {
+    countedPieces[square] = (delta > 0) ? player : PLAYER_NONE;
+    int unit = (player == PLAYER_1) ? 1 : k + 1;
+    int change = delta * unit;
+    // the counts a window can reach as it becomes, or stops being, a piece
+    // short or full: a placed piece makes one of the player's a piece short
+    // or full, or blocks one of the opponent's; a removed one undoes that
+    int base = (delta > 0) ? 0 : -unit;
+    int ownShort = (k - 1) * unit + base;
+    int ownFull = k * unit + base;
+    int otherShort = (k - 1) * ((player == PLAYER_1) ? k + 1 : 1) + unit + base;
+    int windows = geometry.getSquareWindows(square);
+    boolean changed = false;
+    for (int i = 0; i < windows; i++) {
+      int window = geometry.getSquareWindow(square, i);
+      int pieces = windowPieces[window] + change;
+      windowPieces[window] = pieces;
+      if (pieces == ownShort || pieces == ownFull || pieces == otherShort)
+        changed = true;
+    }
+    if (!changed)
+      return;
+    // few moves change any, so only then go through the windows again
+    for (int i = 0; i < windows; i++) {
+      int window = geometry.getSquareWindow(square, i);
+      int pieces = windowPieces[window];
+      if (pieces != ownShort && pieces != ownFull && pieces != otherShort)
+        continue;
+      // a piece placed in a window a piece short fills its empty square,
+      // and one removed from a window then a piece short empties it
+      boolean placed = delta > 0;
+      countWinWindow(pieces - change,
+          placed ? square : getEmptySquare(window, square), -1);
+      countWinWindow(pieces,
+          placed ? getEmptySquare(window, square) : square, 1);
+    }
+  }
+
+  /* Adds the sign to the count of windows a piece short of the win at the
+   * empty square, for the player whose pieces of a window those are, if
+   * any. */
+  private void countWinWindow(int pieces, int empty, int sign) {
+    if (pieces == k - 1)
+      countWinSquare(0, empty, sign);
+    if (pieces == (k - 1) * (k + 1))
+      countWinSquare(1, empty, sign);
+  }
+
+  /* Gets a square of the window other than the square that is empty, as
+   * far as the window counts go. */
+  private int getEmptySquare(int window, int square) {
+    for (int i = 0; i < k; i++) {
+      int s = geometry.getWindowSquare(window, i);
+      if (s != square && countedPieces[s] == PLAYER_NONE)
+        return s;
+    }
+    return -1;
+  }
+
+  /* Adds the sign to the side's count of windows a piece short of the win
+   * at the square, listing the square while the count is positive. */
+  private void countWinSquare(int side, int square, int sign) {
+    int[] squares = winSquares[side];
+    int[] indexes = winIndexes[side];
+    if (sign > 0 && winWindows[side][square]++ == 0) {
+      indexes[square] = numWinSquares[side];
+      squares[numWinSquares[side]++] = square;
+    } else if (sign < 0 && --winWindows[side][square] == 0) {
+      int last = squares[--numWinSquares[side]];
+      squares[indexes[square]] = last;
+      indexes[last] = indexes[square];
+    }
+  }
+
+  /* Gets the index of a player's side in per-side arrays. */
+  private static int side(int player) {
+    return (player == PLAYER_1) ? 0 : 1;
+  }
+
+  /* Gets the Zobrist key for a player's piece on the square. */
+  private long getPieceKey(int square, int player) {
+    return pieceKeys[2 * square + (player == PLAYER_1 ? 0 : 1)];
+  }
+
+  /* Gets the Zobrist key for the player to move and pieces left to place. */
+  private long getStateKey() {
+    long key = remainingKeys[getTurnRemainingMoves(ply)];
+    return (turn == PLAYER_1) ? key : key ^ turnKey;
   }
 
   /* Gets the minimum of 4 ints. */
@@ -846,11 +1198,20 @@ public class MnkGame {
     return Math.min(Math.min(i0, i1), Math.min(i2, i3));
   }
 
+  /* Gets the lowest empty square in the column, or -1 if it is full. */
+  private int getDropSquare(int col) {
+    for (int square = col; square < n * m; square += m) {
+      if (board.get(square) == PLAYER_NONE)
+        return square;
+    }
+    return -1;
+  }
+
   /* Gets the number of columns that are "full" -- no empty squares. */
   private int getOccupiedCols() {
     int total = 0;
     for (int i = (n - 1) * m; i < n * m; i++) {
-      if (board[i] != PLAYER_NONE)
+      if (board.get(i) != PLAYER_NONE)
         total++;
     }
     return total;
@@ -866,12 +1227,9 @@ public class MnkGame {
 
           @Override
           public boolean hasNext() {
-            while (index < n * m) {
-              if (board[index] == PLAYER_NONE)
-                return true;
-              index++;
-            }
-            return false;
+            if (index >= 0)
+              index = board.nextEmpty(index);
+            return index >= 0;
           }
 
           @Override
@@ -897,7 +1255,7 @@ public class MnkGame {
           @Override
           public boolean hasNext() {
             while (col < m) {
-              if (board[index] == PLAYER_NONE)
+              if (board.get(index) == PLAYER_NONE)
                 return true;
               index += m;
               if (index >= m * n)
@@ -951,7 +1309,7 @@ public class MnkGame {
                 row++;
                 continue;
               }
-              if (board[index] == PLAYER_NONE)
+              if (board.get(index) == PLAYER_NONE)
                 return true;
               goNext();
             }
@@ -994,7 +1352,11 @@ public class MnkGame {
           @Override
           public boolean hasNext() {
             while (col >= 0) {
-              if (board[index] == PLAYER_NONE)
+              if (col >= m) { // past the right edge for even m
+                goNext();
+                continue;
+              }
+              if (board.get(index) == PLAYER_NONE)
                 return true;
               index += m;
               if (index >= m * n) {
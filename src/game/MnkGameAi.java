@@ -5,6 +5,7 @@ package game;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -12,10 +13,20 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import search.MnkGameAlphabetaSearcher;
+import search.MnkGameDfpnSolver;
+import search.MnkGameMctsSearcher;
 import search.MnkGameMinimaxSearcher;
+import search.MnkGameMtdfSearcher;
+import search.MnkGameProofTable;
 import search.MnkGameSearcher;
+import search.MnkGameSolver;
+import search.MnkGameThreatSolver;
+import search.MnkGameTranspositionTable;
+import search.MnkGameYbwSearcher;
 import eval.MnkGameBasicEvaluator;
 import eval.MnkGameEvaluator;
+import eval.MnkGamePatternEvaluator;
 
 
 /**
@@ -25,6 +36,53 @@ import eval.MnkGameEvaluator;
  */
 public class MnkGameAi {
 
+  /* Searches successively deeper until interrupted, only to fill the
+   * transposition table it shares with the main search (Lazy SMP). */
+  private static class HelperTask implements Runnable {
+    private final MnkGameSearcher searcher;
+    private final int startDepth;
+    private final int maxDepth;
+
+    public HelperTask(MnkGameSearcher searcher, int startDepth, int maxDepth) {
+      this.searcher = searcher;
+      this.startDepth = startDepth;
+      this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public void run() {
+      searcher.searchIteratively(startDepth, maxDepth, null);
+    }
+  }
+
+  /* Keeps the latest iteration result of the main search, logging it. */
+  private class IterationLogger implements MnkGameSearcher.IterationListener {
+    private final long timeStart;
+    private final long nodesStart;
+    private final MnkGameSearcher[] helpers;
+    private volatile MnkGameSearcher.Result result;
+
+    public IterationLogger(long timeStart, long nodesStart,
+        MnkGameSearcher[] helpers) {
+      this.timeStart = timeStart;
+      this.nodesStart = nodesStart;
+      this.helpers = helpers;
+    }
+
+    @Override
+    public void iterationFinished(int depth, MnkGameSearcher.Result result) {
+      this.result = result;
+      if ((log & LOG_PV) != 0)
+        printSearchResult(result, depth, System.currentTimeMillis() - timeStart,
+            searcher.getNodeCount() - nodesStart + getNodeCount(helpers));
+    }
+
+    public MnkGameSearcher.Result getResult() {
+      return result;
+    }
+  }
+
+
   public static final int LOG_ALL = 0b11;
   public static final int LOG_PV = 0b10;
   public static final int LOG_MOVE = 0b01;
@@ -34,20 +92,40 @@ public class MnkGameAi {
   public static final int MAX_DEPTH = Integer.MAX_VALUE;
   public static final int MIN_TIME = 10;
   public static final int MAX_TIME = Integer.MAX_VALUE;
+  public static final int MIN_HASH = 1;
+  public static final int MAX_HASH = 1 << 12;
+  public static final int MIN_THREADS = 1;
+  public static final int MAX_THREADS = 1 << 8;
+
+  // greatest k for which the pattern evaluator is the default
+  private static final int PATTERN_EVALUATOR_MAX_K = 6;
 
   private Class<? extends MnkGameSearcher> sc;
-  private Class<? extends MnkGameEvaluator> ec;
+  private Class<? extends MnkGameEvaluator> ec; // null for default
+  private Class<? extends MnkGameSolver> svc;
   private MnkGameSearcher searcher;
 
   private int depth;
   private int time;
+  private int hash;
+  private int threads;
+  private int window;
+  private int threatDepth;
+  private int playoutLength;
 
   private int log;
+  private long playoutsStart; // of the current think, for logging
 
 
   public MnkGameAi(MnkGame game) {
     sc = MnkGameMinimaxSearcher.class;
-    ec = MnkGameBasicEvaluator.class;
+    ec = null;
+    svc = MnkGameDfpnSolver.class;
+    hash = MnkGameAlphabetaSearcher.DEFAULT_TABLE_SIZE;
+    threads = MIN_THREADS;
+    window = MnkGameAlphabetaSearcher.DEFAULT_ASPIRATION_WINDOW;
+    threatDepth = -1;
+    playoutLength = -1;
     initializeSearcher(game);
 
     depth = MAX_DEPTH;
@@ -67,6 +145,10 @@ public class MnkGameAi {
     initializeSearcher(getGame());
   }
 
+  public void setSolver(Class<? extends MnkGameSolver> svc) {
+    this.svc = svc;
+  }
+
   public void setGame(MnkGame game) {
     initializeSearcher(game);
   }
@@ -83,6 +165,71 @@ public class MnkGameAi {
     this.time = time;
   }
 
+  public void setHashSize(int megabytes) {
+    if (megabytes < MIN_HASH || megabytes > MAX_HASH)
+      throw new IllegalArgumentException("Invalid hash size: " + megabytes);
+    this.hash = megabytes;
+    initializeSearcher(getGame());
+  }
+
+  /**
+   * Sets the number of threads to search with. Parallel searchers, i.e.
+   * {@link MnkGameYbwSearcher} and {@link MnkGameMctsSearcher}, use them
+   * as their worker threads. For searchers with a transposition table,
+   * each extra thread instead runs its own search of a copy of the game,
+   * sharing the main search's table; threads are staggered so that every
+   * other one searches a ply deeper. Other searchers always use one
+   * thread.
+   */
+  public void setThreads(int threads) {
+    if (threads < MIN_THREADS || threads > MAX_THREADS)
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    this.threads = threads;
+    if (searcher instanceof MnkGameYbwSearcher)
+      ((MnkGameYbwSearcher) searcher).setParallelism(threads);
+    if (searcher instanceof MnkGameMctsSearcher)
+      ((MnkGameMctsSearcher) searcher).setParallelism(threads);
+  }
+
+  /**
+   * Sets the half-width of the aspiration window alpha-beta searchers
+   * start each iteration with, around the previous iteration's score.
+   * Zero disables aspiration windows.
+   */
+  public void setAspirationWindow(int width) {
+    if (width < 0)
+      throw new IllegalArgumentException("Invalid window width: " + width);
+    this.window = width;
+    if (searcher instanceof MnkGameAlphabetaSearcher)
+      ((MnkGameAlphabetaSearcher) searcher).setAspirationWindow(width);
+  }
+
+  /**
+   * Sets the remaining depth at or below which alpha-beta searchers first
+   * search positions for wins by continuous fours, see
+   * {@link MnkGameAlphabetaSearcher#setThreatDepth(int)}. Negative disables
+   * them, which is the default.
+   */
+  public void setThreatDepth(int depth) {
+    if (depth > MAX_DEPTH)
+      throw new IllegalArgumentException("Invalid threat depth: " + depth);
+    this.threatDepth = Math.max(depth, -1);
+    if (searcher instanceof MnkGameAlphabetaSearcher)
+      ((MnkGameAlphabetaSearcher) searcher).setThreatDepth(threatDepth);
+  }
+
+  /**
+   * Sets the moves after which playouts of Monte Carlo searchers stop and
+   * are decided by the evaluator, see
+   * {@link MnkGameMctsSearcher#setPlayoutLength(int)}. Negative plays them
+   * out to the end, which is the default.
+   */
+  public void setPlayoutLength(int plies) {
+    this.playoutLength = Math.max(plies, -1);
+    if (searcher instanceof MnkGameMctsSearcher)
+      ((MnkGameMctsSearcher) searcher).setPlayoutLength(playoutLength);
+  }
+
   public void setLogPv(boolean enabled) {
     log = enabled ? (log | LOG_PV) : (log & ~LOG_PV);
   }
@@ -99,6 +246,26 @@ public class MnkGameAi {
     return time;
   }
 
+  public int getHashSize() {
+    return hash;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getAspirationWindow() {
+    return window;
+  }
+
+  public int getThreatDepth() {
+    return threatDepth;
+  }
+
+  public int getPlayoutLength() {
+    return playoutLength;
+  }
+
   public MnkGame getGame() {
     return searcher.getGame();
   }
@@ -111,30 +278,70 @@ public class MnkGameAi {
     long timeStart = System.currentTimeMillis();
     long timeEnd = timeStart + time;
     long nodesStart = searcher.getNodeCount();
-    MnkGameSearcher.Result result = null;
-    if ((log & LOG_PV) != 0)
-      printSearchResultHeader();
-    for (int i = 1; i <= depth; i++) {
-      MnkGameSearcher.Task task = new MnkGameSearcher.Task(searcher, i);
-      Future<MnkGameSearcher.Result> future = executor.submit(task);
-      long timeRemaining = timeEnd - System.currentTimeMillis();
-      try {
-        result = future.get(timeRemaining, TimeUnit.MILLISECONDS);
-      } catch (TimeoutException | InterruptedException e) {
-        break;
-      } catch (ExecutionException e) {
-        executor.shutdown();
-        throw e;
-      } finally {
-        future.cancel(true);
+    if (searcher instanceof MnkGameMctsSearcher)
+      playoutsStart = ((MnkGameMctsSearcher) searcher).getPlayouts();
+    MnkGameTranspositionTable table = getTranspositionTable();
+    if (table != null)
+      table.newSearch();
+    MnkGameThreatSolver threatSolver = getThreatSolver();
+    long solvesStart = 0;
+    long proofsStart = 0;
+    if (threatSolver != null) {
+      threatSolver.getTranspositionTable().newSearch();
+      solvesStart = threatSolver.getSolveCount();
+      proofsStart = threatSolver.getProofCount();
+    }
+    MnkGameSearcher[] helpers = new MnkGameSearcher[0];
+    ExecutorService helperExecutor = null;
+    if (table != null && threads > 1) {
+      helpers = new MnkGameSearcher[threads - 1];
+      helperExecutor = Executors.newFixedThreadPool(helpers.length);
+      for (int i = 0; i < helpers.length; i++) {
+        helpers[i] = createSearcher(new MnkGame(getGame()));
+        configureSearcher(helpers[i], table);
+        int startDepth = MIN_DEPTH + (i + 1) % 2; // odd helpers a ply ahead
+        helperExecutor.execute(new HelperTask(helpers[i], startDepth, depth));
       }
-      if ((log & LOG_PV) != 0)
-        printSearchResult(result, i, System.currentTimeMillis() - timeStart,
-            searcher.getNodeCount() - nodesStart);
-      if (result.isProvenResult())
-        break;
     }
-    executor.shutdown();
+    final IterationLogger logger =
+        new IterationLogger(timeStart, nodesStart, helpers);
+    // a forced win by threats needs no search; both count against the time
+    Future<MnkGameSearcher.Result> future = executor.submit(
+        new Callable<MnkGameSearcher.Result>() {
+          @Override
+          public MnkGameSearcher.Result call() throws Exception {
+            MnkGameSearcher.Result threats = searchThreats();
+            if (threats != null)
+              return threats;
+            if ((log & LOG_PV) != 0)
+              printSearchResultHeader();
+            new MnkGameSearcher.IterativeTask(searcher, MIN_DEPTH, depth,
+                logger).call();
+            return null;
+          }
+        });
+    MnkGameSearcher.Result threats = null;
+    try {
+      threats = future.get(timeEnd - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | InterruptedException e) {
+      // keep the deepest iteration completed in time
+    } finally {
+      future.cancel(true);
+      shutdown(executor);
+      if (helperExecutor != null)
+        shutdown(helperExecutor);
+      for (MnkGameSearcher helper : helpers)
+        helper.shutdown();
+    }
+    if (threats != null)
+      return logMove(threats.getPrincipleVariationMove());
+    MnkGameSearcher.Result result = logger.getResult();
+    if ((log & LOG_PV) != 0 && table != null)
+      printTableStatistics(table);
+    if ((log & LOG_PV) != 0 && threatSolver != null)
+      printThreatStatistics(threatSolver, threatSolver.getSolveCount()
+          - solvesStart, threatSolver.getProofCount() - proofsStart);
 
     int move;
     if (result != null) {
@@ -142,6 +349,67 @@ public class MnkGameAi {
     } else {
       move = generateRandomMove();
     }
+    return logMove(move);
+  }
+
+
+  /**
+   * Solves the game from the current position with the solver, within the
+   * time limit, logging the result with the principal variation. The solver
+   * may use as much memory for its tree or table as the hash size.
+   *
+   * @return    Proven result, or null if it was not solved in time
+   * @throws ExecutionException   If the solver failed
+   */
+  public MnkGameSearcher.Result solve() throws ExecutionException {
+    final MnkGameSolver solver = createSolver(new MnkGame(getGame()));
+    solver.setMemorySize(hash);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    long timeStart = System.currentTimeMillis();
+    Future<MnkGameSearcher.Result> future = executor.submit(
+        new Callable<MnkGameSearcher.Result>() {
+          @Override
+          public MnkGameSearcher.Result call() {
+            return solver.solve();
+          }
+        });
+    MnkGameSearcher.Result result = null;
+    try {
+      result = future.get(time, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | InterruptedException e) {
+      // not solved in time
+    } finally {
+      future.cancel(true);
+      shutdown(executor);
+    }
+    if ((log & LOG_PV) != 0) {
+      printSolveResult(result, System.currentTimeMillis() - timeStart,
+          solver.getNodeCount());
+      if (solver instanceof MnkGameDfpnSolver)
+        printProofTableStatistics(((MnkGameDfpnSolver) solver).getTable());
+    }
+    return result;
+  }
+
+
+  /* Searches the current position for a forced win of the player to move
+   * by threats, within the threat solver's node limit, unless threat
+   * searches are disabled. Stops early if the thread is interrupted. */
+  private MnkGameSearcher.Result searchThreats() {
+    if (threatDepth < 0)
+      return null;
+    MnkGameThreatSolver solver = new MnkGameThreatSolver(new MnkGame(getGame()));
+    long timeStart = System.currentTimeMillis();
+    MnkGameSearcher.Result result = solver.solve();
+    if (result != null && (log & LOG_PV) != 0) {
+      System.out.print("Threats: ");
+      printSolveResult(result, System.currentTimeMillis() - timeStart,
+          solver.getNodeCount());
+    }
+    return result;
+  }
+
+  private int logMove(int move) {
     if ((log & LOG_MOVE) != 0) {
       int row = getGame().getRow(move);
       int col = getGame().getCol(move);
@@ -150,10 +418,36 @@ public class MnkGameAi {
     return move;
   }
 
-
   private void initializeSearcher(MnkGame g) {
+    if (searcher != null)
+      searcher.shutdown(); // e.g. its worker threads
+    searcher = createSearcher(g);
+    configureSearcher(searcher, (searcher instanceof MnkGameAlphabetaSearcher)
+        ? new MnkGameTranspositionTable(hash) : null);
+  }
+
+  /* Applies the AI's settings to a searcher of the main search or one of
+   * its helpers, which share the given table. */
+  private void configureSearcher(MnkGameSearcher s,
+      MnkGameTranspositionTable table) {
+    if (s instanceof MnkGameAlphabetaSearcher) {
+      ((MnkGameAlphabetaSearcher) s).setTranspositionTable(table);
+      ((MnkGameAlphabetaSearcher) s).setAspirationWindow(window);
+      ((MnkGameAlphabetaSearcher) s).setThreatDepth(threatDepth);
+    }
+    if (s instanceof MnkGameYbwSearcher)
+      ((MnkGameYbwSearcher) s).setParallelism(threads);
+    if (s instanceof MnkGameMctsSearcher) {
+      ((MnkGameMctsSearcher) s).setTreeSize(hash);
+      ((MnkGameMctsSearcher) s).setPlayoutLength(playoutLength);
+      ((MnkGameMctsSearcher) s).setParallelism(threads);
+    }
+  }
+
+  private MnkGameSearcher createSearcher(MnkGame g) {
     try {
-      searcher = sc.getConstructor(MnkGame.class, Class.class).newInstance(g, ec);
+      return sc.getConstructor(MnkGame.class, Class.class).newInstance(g,
+          (ec != null) ? ec : getDefaultEvaluator(g));
     } catch (NoSuchMethodException | SecurityException | InstantiationException
         | IllegalAccessException | IllegalArgumentException
         | InvocationTargetException e) {
@@ -161,6 +455,58 @@ public class MnkGameAi {
     }
   }
 
+  /* Gets the evaluator to use for a game if none has been set. */
+  private static Class<? extends MnkGameEvaluator> getDefaultEvaluator(
+      MnkGame g) {
+    if (g.getK() <= PATTERN_EVALUATOR_MAX_K)
+      return MnkGamePatternEvaluator.class;
+    return MnkGameBasicEvaluator.class;
+  }
+
+  private MnkGameSolver createSolver(MnkGame g) {
+    try {
+      return svc.getConstructor(MnkGame.class).newInstance(g);
+    } catch (NoSuchMethodException | SecurityException | InstantiationException
+        | IllegalAccessException | IllegalArgumentException
+        | InvocationTargetException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /* Stops any search still running and waits for it to unwind, so the game
+   * is not changed while it is still undoing its moves. */
+  private void shutdown(ExecutorService executor) {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* Gets the total nodes searched by helper searchers. Counts are read
+   * while the helpers run, so they are only approximate. */
+  private long getNodeCount(MnkGameSearcher[] helpers) {
+    long total = 0;
+    for (MnkGameSearcher helper : helpers)
+      total += helper.getNodeCount();
+    return total;
+  }
+
+  private MnkGameTranspositionTable getTranspositionTable() {
+    if (!(searcher instanceof MnkGameAlphabetaSearcher))
+      return null;
+    return ((MnkGameAlphabetaSearcher) searcher).getTranspositionTable();
+  }
+
+  /* Gets the solver of the searcher's threat searches, or null if it does
+   * not search threats. */
+  private MnkGameThreatSolver getThreatSolver() {
+    if (!(searcher instanceof MnkGameAlphabetaSearcher) || threatDepth < 0)
+      return null;
+    return ((MnkGameAlphabetaSearcher) searcher).getThreatSolver();
+  }
+
   private void printSearchResultHeader() {
     System.out.println("Depth\tTime\tNodes\tScore\tVariation");
   }
@@ -188,9 +534,55 @@ public class MnkGameAi {
       int col = getGame().getCol(move);
       System.out.print(row + "," + col + " ");
     }
+    if (searcher instanceof MnkGameMtdfSearcher)
+      System.out.printf("(%d passes)", ((MnkGameMtdfSearcher) searcher).getPasses());
+    if (searcher instanceof MnkGameMctsSearcher) {
+      long playouts = ((MnkGameMctsSearcher) searcher).getPlayouts() - playoutsStart;
+      System.out.printf("(%d playouts, %.0f/s)", playouts, playouts * 1000.0 / Math.max(t, 1));
+    }
+    System.out.println();
+  }
+
+  private void printSolveResult(MnkGameSearcher.Result r, long t, long n) {
+    System.out.printf("Time: %.3f\tNodes: %d\t", t / 1000.0, n);
+    if (r == null) {
+      System.out.println("Not solved.");
+      return;
+    }
+    if (r.getScore() > 0) {
+      System.out.print("Solved: player 1 wins. ");
+    } else if (r.getScore() < 0) {
+      System.out.print("Solved: player 2 wins. ");
+    } else {
+      System.out.print("Solved: draw. ");
+    }
+    for (int move : r.getPrincipleVaration()) {
+      int row = getGame().getRow(move);
+      int col = getGame().getCol(move);
+      System.out.print(row + "," + col + " ");
+    }
     System.out.println();
   }
 
+  private void printTableStatistics(MnkGameTranspositionTable t) {
+    System.out.printf("Hash: %d probes, %.1f%% hits, %.1f%% full (%d MB)%n",
+        t.getProbes(), 100 * t.getHitRate(), 100 * t.getFillRate(), hash);
+  }
+
+  private void printThreatStatistics(MnkGameThreatSolver s, long solves,
+      long proofs) {
+    MnkGameTranspositionTable t = s.getTranspositionTable();
+    System.out.printf("Threats: %d searches, %d wins, %d probes, %.1f%% hits%n",
+        solves, proofs, t.getProbes(), 100 * t.getHitRate());
+  }
+
+  private void printProofTableStatistics(MnkGameProofTable t) {
+    if (t == null)
+      return;
+    System.out.printf("Proof table: %.1f%% full, %d collections (%d MB)%n",
+        100.0 * t.getSize() / t.getCapacity(), t.getCollections(), hash);
+  }
+
   private int generateRandomMove() {
     Random rand = new Random();
 
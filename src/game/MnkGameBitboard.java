@@ -0,0 +1,290 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package game;
+
+/**
+ * The MnkGameBitboard class stores the pieces of an {@link MnkGame} board
+ * as per-player occupancy masks.
+ * <p>
+ * Squares use the same row-major indexing as MnkGame, one bit per square.
+ * Boards with at most 64 squares are kept in a single long per player;
+ * larger boards use an array of long words. A line of k pieces is detected
+ * by repeatedly shifting a player's mask along a line direction and AND-ing
+ * it with itself. Single-word boards shift the whole mask, with column masks
+ * preventing shifts from wrapping around the edge of the board; multi-word
+ * boards shift the single word of a line mask around the last move.
+ */
+abstract class MnkGameBitboard {
+
+  /* Single long per player, for boards of up to 64 squares. */
+  private static final class Single extends MnkGameBitboard {
+    private final long all;
+    private final int[] shifts; // horizontal, vertical, diagonal, anti-diag.
+    private final long[] masks; // squares whose shifts do not wrap around
+    private long p1, p2;
+
+    public Single(int m, int n, int k) {
+      super(m, n, k);
+      long all = 0, notFirstCol = 0, notLastCol = 0;
+      for (int i = 0; i < m * n; i++) {
+        all |= 1L << i;
+        if (i % m != 0)
+          notFirstCol |= 1L << i;
+        if (i % m != m - 1)
+          notLastCol |= 1L << i;
+      }
+      this.all = all;
+      shifts = new int[] {1, m, m + 1, m - 1};
+      masks = new long[] {notLastCol, all, notLastCol, notFirstCol};
+    }
+
+    @Override
+    void set(int square, int player) {
+      if (player == MnkGame.PLAYER_1) {
+        p1 |= 1L << square;
+      } else {
+        p2 |= 1L << square;
+      }
+    }
+
+    @Override
+    void clear(int square, int player) {
+      if (player == MnkGame.PLAYER_1) {
+        p1 &= ~(1L << square);
+      } else {
+        p2 &= ~(1L << square);
+      }
+    }
+
+    @Override
+    int get(int square) {
+      if ((p1 >>> square & 1) != 0)
+        return MnkGame.PLAYER_1;
+      if ((p2 >>> square & 1) != 0)
+        return MnkGame.PLAYER_2;
+      return MnkGame.PLAYER_NONE;
+    }
+
+    @Override
+    int nextEmpty(int square) {
+      if (square >= squares)
+        return -1;
+      long empty = ~(p1 | p2) & all & (-1L << square);
+      return (empty == 0) ? -1 : Long.numberOfTrailingZeros(empty);
+    }
+
+    @Override
+    boolean hasLine(int player, int square, int k) {
+      long occ = (player == MnkGame.PLAYER_1) ? p1 : p2;
+      for (int d = 0; d < 4; d++) {
+        if (!enabled[d])
+          continue;
+        long run = occ;
+        for (int i = 1; i < k && run != 0; i++)
+          run &= (run >>> shifts[d]) & masks[d];
+        if (run != 0)
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /* Arrays of longs per player, for boards of more than 64 squares. Besides
+   * the row-major mask, each player has a line mask in which the board's
+   * lines in every direction are laid out end to end, separated by an empty
+   * bit, so that the bits of any line through a square are contiguous. */
+  private static final class Multi extends MnkGameBitboard {
+    private final long[] p1, p2;
+    private final long[] lines1, lines2;
+    private final int[] index; // bit of square * 4 + direction in line masks
+
+    public Multi(int m, int n, int k) {
+      super(m, n, k);
+      int words = (m * n + Long.SIZE - 1) / Long.SIZE;
+      p1 = new long[words];
+      p2 = new long[words];
+      index = new int[m * n * 4];
+      int bit = Long.SIZE; // spare first word, so reads never go below zero
+      for (int d = 0; d < 4; d++) {
+        for (int square = 0; square < m * n; square++) {
+          if (isLineStart(square, d)) {
+            for (int i = square; i >= 0; i = nextOnLine(i, d))
+              index[i * 4 + d] = bit++;
+            bit++; // separator
+          }
+        }
+      }
+      // spare last word, so two-word reads never go past the end either
+      lines1 = new long[(bit + Long.SIZE - 1) / Long.SIZE + 1];
+      lines2 = new long[lines1.length];
+    }
+
+    @Override
+    void set(int square, int player) {
+      long[] occ = (player == MnkGame.PLAYER_1) ? p1 : p2;
+      long[] lines = (player == MnkGame.PLAYER_1) ? lines1 : lines2;
+      occ[square >>> 6] |= 1L << square;
+      for (int i = square * 4; i < square * 4 + 4; i++)
+        lines[index[i] >>> 6] |= 1L << index[i];
+    }
+
+    @Override
+    void clear(int square, int player) {
+      long[] occ = (player == MnkGame.PLAYER_1) ? p1 : p2;
+      long[] lines = (player == MnkGame.PLAYER_1) ? lines1 : lines2;
+      occ[square >>> 6] &= ~(1L << square);
+      for (int i = square * 4; i < square * 4 + 4; i++)
+        lines[index[i] >>> 6] &= ~(1L << index[i]);
+    }
+
+    @Override
+    int get(int square) {
+      if ((p1[square >>> 6] >>> square & 1) != 0)
+        return MnkGame.PLAYER_1;
+      if ((p2[square >>> 6] >>> square & 1) != 0)
+        return MnkGame.PLAYER_2;
+      return MnkGame.PLAYER_NONE;
+    }
+
+    @Override
+    int nextEmpty(int square) {
+      if (square >= squares)
+        return -1;
+      int i = square >>> 6;
+      long empty = ~(p1[i] | p2[i]) & (-1L << square);
+      while (empty == 0) {
+        if (++i >= p1.length)
+          return -1;
+        empty = ~(p1[i] | p2[i]);
+      }
+      int result = (i << 6) + Long.numberOfTrailingZeros(empty);
+      return (result < squares) ? result : -1;
+    }
+
+    @Override
+    boolean hasLine(int player, int square, int k) {
+      long[] lines = (player == MnkGame.PLAYER_1) ? lines1 : lines2;
+      for (int d = 0; d < 4; d++) {
+        if (!enabled[d])
+          continue;
+        int bit = index[square * 4 + d];
+        if (k > Long.SIZE / 2) {
+          if (hasLongRun(lines, bit, k))
+            return true;
+        } else {
+          long line = window(lines, bit, k);
+          if (Long.bitCount(line) >= k && hasRun(line, k))
+            return true;
+        }
+      }
+      return false;
+    }
+
+    /* Counts consecutive bits of a line mask around the specified bit, for
+     * lines too long to fit in a single word. */
+    private static boolean hasLongRun(long[] words, int bit, int k) {
+      int end = Math.min(bit + k, words.length * Long.SIZE);
+      int consecutive = 0;
+      for (int i = Math.max(bit - k + 1, Long.SIZE); i < end; i++) {
+        consecutive = ((words[i >>> 6] >>> i & 1) != 0) ? consecutive + 1 : 0;
+        if (consecutive >= k)
+          return true;
+      }
+      return false;
+    }
+
+    /* Gets the 2k - 1 bits of a line mask centered on the specified bit,
+     * i.e. every line of k bits through it. Requires k to be at most 32. */
+    private static long window(long[] words, int bit, int k) {
+      int start = bit - k + 1;
+      int i = start >>> 6;
+      int offset = start & 63;
+      long bits = words[i] >>> offset;
+      if (offset != 0)
+        bits |= words[i + 1] << (64 - offset);
+      return bits & (-1L >>> (64 - 2 * k + 1));
+    }
+
+    /* Checks if the square is the first of its line in the direction. */
+    private boolean isLineStart(int square, int d) {
+      int row = square / m;
+      int col = square % m;
+      switch (d) {
+        case 0: return col == 0;
+        case 1: return row == 0;
+        case 2: return row == 0 || col == 0;
+        default: return row == 0 || col == m - 1;
+      }
+    }
+
+    /* Gets the next square along the line in the direction, or -1. */
+    private int nextOnLine(int square, int d) {
+      int row = square / m + (d == 0 ? 0 : 1);
+      int col = square % m + (d == 0 || d == 2 ? 1 : d == 3 ? -1 : 0);
+      if (row >= n || col < 0 || col >= m)
+        return -1;
+      return row * m + col;
+    }
+  }
+
+
+  /**
+   * Creates an empty bitboard for a board of the specified size.
+   *
+   * @param m   Number of columns
+   * @param n   Number of rows
+   * @param k   Number of pieces in a line needed to win
+   * @return    Single-word bitboard if the board has at most 64 squares;
+   *            multi-word bitboard otherwise
+   */
+  static MnkGameBitboard create(int m, int n, int k) {
+    if (m * n <= Long.SIZE)
+      return new Single(m, n, k);
+    return new Multi(m, n, k);
+  }
+
+
+  protected final int m, n, squares;
+  protected final boolean[] enabled; // whether a k-line fits each direction
+
+
+  private MnkGameBitboard(int m, int n, int k) {
+    this.m = m;
+    this.n = n;
+    this.squares = m * n;
+    enabled = new boolean[] {m >= k, n >= k, m >= k && n >= k,
+                             m >= k && n >= k};
+  }
+
+  /* Checks if the word has k consecutive set bits, doubling the length of
+   * the runs covered with each shift. */
+  private static boolean hasRun(long run, int k) {
+    int covered = 1;
+    while (covered * 2 <= k && run != 0) {
+      run &= run >>> covered;
+      covered *= 2;
+    }
+    if (covered < k)
+      run &= run >>> (k - covered);
+    return run != 0;
+  }
+
+  /** Places a piece of the player on the (empty) square. */
+  abstract void set(int square, int player);
+
+  /** Removes the player's piece from the square. */
+  abstract void clear(int square, int player);
+
+  /** Gets the player whose piece is on the square, if any. */
+  abstract int get(int square);
+
+  /** Gets the first empty square at or after the square, or -1 if none. */
+  abstract int nextEmpty(int square);
+
+  /**
+   * Checks if the player has k pieces in a row through the square. The
+   * check assumes the player had no such line before placing that square.
+   */
+  abstract boolean hasLine(int player, int square, int k);
+}
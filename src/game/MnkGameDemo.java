@@ -9,12 +9,23 @@ import java.util.Scanner;
 import java.util.concurrent.ExecutionException;
 
 import search.MnkGameAlphabetaSearcher;
+import search.MnkGameDfpnSolver;
+import search.MnkGameMctsSearcher;
 import search.MnkGameMinimaxSearcher;
+import search.MnkGameMtdfSearcher;
 import search.MnkGameOrderedAbSearcher;
+import search.MnkGamePlayoutEngine;
+import search.MnkGamePnsSolver;
+import search.MnkGamePvsSearcher;
 import search.MnkGameSearcher;
+import search.MnkGameSolver;
+import search.MnkGameThreatSolver;
+import search.MnkGameYbwSearcher;
 import eval.MnkGameBasicEvaluator;
 import eval.MnkGameEvaluator;
+import eval.MnkGameIncrementalEvaluator;
 import eval.MnkGameLineEvaluator;
+import eval.MnkGamePatternEvaluator;
 import eval.MnkGameRandomEvaluator;
 
 /**
@@ -126,6 +137,21 @@ public class MnkGameDemo {
     }
   }
 
+  private static class AiSolveCommand extends Command {
+    public AiSolveCommand(MnkGameDemo game) {
+      super(game, "solve", "sv");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().computerSolve();
+      } catch (ExecutionException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
   private static class AiSetDepthCommand extends Command {
     public AiSetDepthCommand(MnkGameDemo game) {
       super(game, "set-depth", "sd");
@@ -190,6 +216,150 @@ public class MnkGameDemo {
     }
   }
 
+  private static class AiSetSolverCommand extends Command {
+    public AiSetSolverCommand(MnkGameDemo game) {
+      super(game, "set-solver", "ssv");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerSolver(args[0]);
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No solver class specified.");
+      }
+    }
+  }
+
+  private static class AiSetHashCommand extends Command {
+    public AiSetHashCommand(MnkGameDemo game) {
+      super(game, "set-hash", "sh");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerHash(Integer.parseInt(args[0]));
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No hash size specified.");
+      }
+    }
+  }
+
+  private static class AiSetThreadsCommand extends Command {
+    public AiSetThreadsCommand(MnkGameDemo game) {
+      super(game, "set-threads", "sth");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerThreads(Integer.parseInt(args[0]));
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No thread count specified.");
+      }
+    }
+  }
+
+  private static class AiSetWindowCommand extends Command {
+    public AiSetWindowCommand(MnkGameDemo game) {
+      super(game, "set-window", "sw");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerWindow(Integer.parseInt(args[0]));
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No window width specified.");
+      }
+    }
+  }
+
+  private static class AiSetThreatsCommand extends Command {
+    public AiSetThreatsCommand(MnkGameDemo game) {
+      super(game, "set-threats", "sts");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerThreats(Integer.parseInt(args[0]));
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No threat depth specified.");
+      }
+    }
+  }
+
+  private static class AiSetPlayoutsCommand extends Command {
+    public AiSetPlayoutsCommand(MnkGameDemo game) {
+      super(game, "set-playouts", "spl");
+    }
+
+    @Override
+    public void execute(String... args) {
+      try {
+        getGame().setComputerPlayouts(Integer.parseInt(args[0]));
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.out.println("No playout length specified.");
+      }
+    }
+  }
+
+  private static class BenchPlayoutsCommand extends Command {
+    public BenchPlayoutsCommand(MnkGameDemo game) {
+      super(game, "bench-playouts", "bp");
+    }
+
+    @Override
+    public void execute(String... args) {
+      int seconds = 1;
+      try {
+        if (args.length >= 1)
+          seconds = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+        return;
+      }
+      getGame().benchPlayouts(seconds * 1000);
+    }
+  }
+
+  private static class BenchThreadsCommand extends Command {
+    public BenchThreadsCommand(MnkGameDemo game) {
+      super(game, "bench-threads", "bt");
+    }
+
+    @Override
+    public void execute(String... args) {
+      int depth = 6, threads = 8;
+      try {
+        if (args.length >= 1)
+          depth = Integer.parseInt(args[0]);
+        if (args.length >= 2)
+          threads = Integer.parseInt(args[1]);
+      } catch (NumberFormatException e) {
+        System.out.println("Parse error: " + e.getMessage());
+        return;
+      }
+      try {
+        getGame().benchThreads(depth, threads);
+      } catch (ExecutionException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
   private static class UndoCommand extends Command {
     public UndoCommand(MnkGameDemo game) {
       super(game, "undo", "u");
@@ -213,6 +383,7 @@ public class MnkGameDemo {
   private Map<Integer, String> playerCharMap;
   private Map<String, Class<? extends MnkGameEvaluator>> evaluatorMap;
   private Map<String, Class<? extends MnkGameSearcher>> searcherMap;
+  private Map<String, Class<? extends MnkGameSolver>> solverMap;
   private MnkGame game;
   private MnkGameAi ai;
 
@@ -227,11 +398,22 @@ public class MnkGameDemo {
       put("basic", MnkGameBasicEvaluator.class);
       put("random", MnkGameRandomEvaluator.class);
       put("line", MnkGameLineEvaluator.class);
+      put("incremental", MnkGameIncrementalEvaluator.class);
+      put("pattern", MnkGamePatternEvaluator.class);
     }};
     searcherMap = new HashMap<String, Class<? extends MnkGameSearcher>>() {{
       put("minimax", MnkGameMinimaxSearcher.class);
       put("alphabeta", MnkGameAlphabetaSearcher.class);
       put("alphabeta+", MnkGameOrderedAbSearcher.class);
+      put("alphabeta-ybw", MnkGameYbwSearcher.class);
+      put("pvs", MnkGamePvsSearcher.class);
+      put("mtdf", MnkGameMtdfSearcher.class);
+      put("mcts", MnkGameMctsSearcher.class);
+    }};
+    solverMap = new HashMap<String, Class<? extends MnkGameSolver>>() {{
+      put("pns", MnkGamePnsSolver.class);
+      put("dfpn", MnkGameDfpnSolver.class);
+      put("threats", MnkGameThreatSolver.class);
     }};
     ai = new MnkGameAi(game);
   }
@@ -247,9 +429,17 @@ public class MnkGameDemo {
     Command[] cmds =
         new Command[] {new DisplayCommand(game), new NewGameCommand(game),
                        new PlayCommand(game), new UndoCommand(game),
-                       new AiPlayCommand(game), new AiSetDepthCommand(game),
+                       new AiPlayCommand(game), new AiSolveCommand(game),
+                       new AiSetDepthCommand(game),
                        new AiSetTimeCommand(game), new AiSetEvalCommand(game),
-                       new AiSetSearchCommand(game)};
+                       new AiSetSearchCommand(game),
+                       new AiSetSolverCommand(game), new AiSetHashCommand(game),
+                       new AiSetThreadsCommand(game),
+                       new AiSetWindowCommand(game),
+                       new AiSetThreatsCommand(game),
+                       new AiSetPlayoutsCommand(game),
+                       new BenchPlayoutsCommand(game),
+                       new BenchThreadsCommand(game)};
 
     String token = "";
     loop: while (in.hasNext()) {
@@ -303,6 +493,64 @@ public class MnkGameDemo {
     }
   }
 
+  private void benchPlayouts(int millis) {
+    MnkGamePlayoutEngine engine = new MnkGamePlayoutEngine(game);
+    int[] wins = new int[3]; // player 2, draw, player 1
+    long timeStart = System.currentTimeMillis();
+    long timeEnd = timeStart + millis;
+    do {
+      for (int i = 0; i < 1 << 10; i++)
+        wins[engine.playout() + 1]++;
+    } while (System.currentTimeMillis() < timeEnd);
+    long t = System.currentTimeMillis() - timeStart;
+    long playouts = engine.getPlayoutCount();
+    System.out.printf("Playouts: %d\tTime: %.3f\tRate: %.0f/s\t", playouts,
+        t / 1000.0, playouts * 1000.0 / t);
+    System.out.printf("Player 1: %.1f%%\tDraw: %.1f%%\tPlayer 2: %.1f%%%n",
+        100.0 * wins[2] / playouts, 100.0 * wins[1] / playouts,
+        100.0 * wins[0] / playouts);
+  }
+
+  /* Times the AI's search to a depth with 1, 2, 4... threads, each from a
+   * fresh searcher and table. */
+  private void benchThreads(int depth, int maxThreads)
+      throws ExecutionException {
+    if (game.isGameOver()) {
+      System.out.println("Game over. Nothing to search.");
+      return;
+    }
+    int oldDepth = ai.getMaxDepth();
+    int oldTime = ai.getMaxTime();
+    int oldThreads = ai.getThreads();
+    try {
+      ai.setMaxDepth(depth);
+      ai.setMaxTime(MnkGameAi.MAX_TIME);
+      ai.setLogPv(false);
+      ai.setLogMove(false);
+      long base = 0;
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        ai.setThreads(threads);
+        ai.setGame(game);
+        long timeStart = System.nanoTime();
+        ai.think();
+        long t = System.nanoTime() - timeStart;
+        if (threads == 1)
+          base = t;
+        System.out.printf("Threads: %d\tTime: %.3f\tSpeedup: %.2f%n",
+            threads, t / 1e9, (double) base / t);
+      }
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid depth or thread count.");
+    } finally {
+      ai.setMaxDepth(oldDepth);
+      ai.setMaxTime(oldTime);
+      ai.setThreads(oldThreads);
+      ai.setGame(game);
+      ai.setLogPv(true);
+      ai.setLogMove(true);
+    }
+  }
+
   private void setComputerTime(int millis) {
     try {
       ai.setMaxTime(millis);
@@ -319,6 +567,42 @@ public class MnkGameDemo {
     }
   }
 
+  private void setComputerHash(int megabytes) {
+    try {
+      ai.setHashSize(megabytes);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid hash size. No changes made.");
+    }
+  }
+
+  private void setComputerThreads(int threads) {
+    try {
+      ai.setThreads(threads);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid thread count. No changes made.");
+    }
+  }
+
+  private void setComputerWindow(int width) {
+    try {
+      ai.setAspirationWindow(width);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid window width. No changes made.");
+    }
+  }
+
+  private void setComputerThreats(int depth) {
+    try {
+      ai.setThreatDepth(depth);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid threat depth. No changes made.");
+    }
+  }
+
+  private void setComputerPlayouts(int plies) {
+    ai.setPlayoutLength(plies);
+  }
+
   private void setComputerEval(String mode) {
     if (!evaluatorMap.containsKey(mode)) {
       System.out.print("Invalid evaluation mode. Valid:");
@@ -341,6 +625,17 @@ public class MnkGameDemo {
     ai.setSearcher(searcherMap.get(mode));
   }
 
+  private void setComputerSolver(String mode) {
+    if (!solverMap.containsKey(mode)) {
+      System.out.print("Invalid solver mode. Valid:");
+      for (String s : solverMap.keySet())
+        System.out.print(" " + s);
+      System.out.println(".");
+      return;
+    }
+    ai.setSolver(solverMap.get(mode));
+  }
+
   private void playMove(int row, int col) {
     if (checkGameOver("Game over, player %s won.", "Game over, draw."))
       return;
@@ -360,6 +655,12 @@ public class MnkGameDemo {
     playMove(game.getRow(move), game.getCol(move));
   }
 
+  private void computerSolve() throws ExecutionException {
+    if (checkGameOver("Game over, player %s won.", "Game over, draw."))
+      return;
+    ai.solve();
+  }
+
   private boolean checkGameOver(String winFormat, String drawFormat) {
     if (game.isGameOver()) {
       String winner = playerCharMap.get(game.getWinner());
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package game;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The MnkGameGeometry class describes the lines and windows of an m x n
+ * board for k-in-a-row.
+ * <p>
+ * A <i>line</i> is a maximal row, column, diagonal or anti-diagonal of the
+ * board; only lines of at least k squares, which can hold a win, are
+ * included. A <i>window</i> is a run of k consecutive squares of a line,
+ * i.e. a way to win. Lines are numbered by direction (rows, columns,
+ * diagonals, then anti-diagonals), then by their first square; windows are
+ * numbered by line, then by their first square, so the windows of a line
+ * are consecutive. Squares of both are indexed as in {@link MnkGame}.
+ * <p>
+ * Everything is computed when the geometry is created, and never changes.
+ * Geometries are created once per board size and k, by
+ * {@link #get(int, int, int)}, and shared by all games, searchers and
+ * evaluators, in any thread.
+ */
+public final class MnkGameGeometry {
+
+  /** Number of line directions: rows, columns, diagonals, anti-diagonals. */
+  public static final int DIRECTIONS = 4;
+
+  private static final int[] ROW_STEPS = {0, 1, 1, 1};
+  private static final int[] COL_STEPS = {1, 0, 1, -1};
+
+  private static final ConcurrentMap<Long, MnkGameGeometry> geometries =
+      new ConcurrentHashMap<>();
+
+
+  private final int m, n, k;
+
+  private final int[] lineSquares; // squares of each line, end to end
+  private final int[] lineStarts; // per line, and the end of the last
+  private final int[] lineWindows; // first window, per line
+  private final int[] squareLines; // per square and direction; -1 if none
+  private final int[] squareIndexes; // of the square in the line
+
+  private final int[] windowSquares; // k squares per window
+  private final int[] squareWindows; // through each square, end to end
+  private final int[] squareWindowStarts; // per square, and the end
+
+  private final int[] neighbors; // squares within k - 1 steps, end to end
+  private final int[] neighborDistances;
+  private final int[] neighborStarts; // per square, and the end
+
+
+  private MnkGameGeometry(int m, int n, int k) {
+    this.m = m;
+    this.n = n;
+    this.k = k;
+    int squares = m * n;
+
+    // lines of at least k squares, by direction and first square
+    int[] squareBuffer = new int[DIRECTIONS * squares];
+    int[] startBuffer = new int[DIRECTIONS * squares + 1];
+    squareLines = new int[DIRECTIONS * squares];
+    squareIndexes = new int[DIRECTIONS * squares];
+    for (int i = 0; i < squareLines.length; i++)
+      squareLines[i] = -1;
+    int size = 0;
+    int numLines = 0;
+    for (int d = 0; d < DIRECTIONS; d++) {
+      for (int square = 0; square < squares; square++) {
+        int row = square / m;
+        int col = square % m;
+        if (isOnBoard(row - ROW_STEPS[d], col - COL_STEPS[d]))
+          continue; // not the start of a line
+        int length = 0;
+        while (isOnBoard(row + length * ROW_STEPS[d],
+            col + length * COL_STEPS[d]))
+          length++;
+        if (length < k)
+          continue;
+        startBuffer[numLines] = size;
+        for (int i = 0; i < length; i++) {
+          int s = (row + i * ROW_STEPS[d]) * m + col + i * COL_STEPS[d];
+          squareLines[s * DIRECTIONS + d] = numLines;
+          squareIndexes[s * DIRECTIONS + d] = i;
+          squareBuffer[size++] = s;
+        }
+        numLines++;
+      }
+    }
+    startBuffer[numLines] = size;
+    lineSquares = new int[size];
+    System.arraycopy(squareBuffer, 0, lineSquares, 0, size);
+    lineStarts = new int[numLines + 1];
+    System.arraycopy(startBuffer, 0, lineStarts, 0, numLines + 1);
+
+    // windows, by line and first square
+    lineWindows = new int[numLines + 1];
+    int numWindows = 0;
+    for (int line = 0; line < numLines; line++) {
+      lineWindows[line] = numWindows;
+      numWindows += getLineLength(line) - k + 1;
+    }
+    lineWindows[numLines] = numWindows;
+    windowSquares = new int[numWindows * k];
+    squareWindowStarts = new int[squares + 1];
+    for (int line = 0; line < numLines; line++) {
+      int window = lineWindows[line];
+      for (int i = 0; i + k <= getLineLength(line); i++, window++) {
+        for (int j = 0; j < k; j++) {
+          int square = lineSquares[lineStarts[line] + i + j];
+          windowSquares[window * k + j] = square;
+          squareWindowStarts[square + 1]++;
+        }
+      }
+    }
+    for (int square = 0; square < squares; square++)
+      squareWindowStarts[square + 1] += squareWindowStarts[square];
+    squareWindows = new int[windowSquares.length];
+    int[] ends = new int[squares];
+    System.arraycopy(squareWindowStarts, 0, ends, 0, squares);
+    for (int i = 0; i < windowSquares.length; i++)
+      squareWindows[ends[windowSquares[i]]++] = i / k;
+
+    // squares within k - 1 steps in any of the 8 directions
+    int[] neighborBuffer = new int[squares * 2 * DIRECTIONS * (k - 1)];
+    int[] distanceBuffer = new int[neighborBuffer.length];
+    neighborStarts = new int[squares + 1];
+    size = 0;
+    for (int square = 0; square < squares; square++) {
+      int row = square / m;
+      int col = square % m;
+      for (int d = 0; d < 2 * DIRECTIONS; d++) {
+        int sign = (d < DIRECTIONS) ? 1 : -1;
+        int dr = sign * ROW_STEPS[d % DIRECTIONS];
+        int dc = sign * COL_STEPS[d % DIRECTIONS];
+        for (int j = 1; j < k && isOnBoard(row + j * dr, col + j * dc); j++) {
+          neighborBuffer[size] = (row + j * dr) * m + col + j * dc;
+          distanceBuffer[size] = j;
+          size++;
+        }
+      }
+      neighborStarts[square + 1] = size;
+    }
+    neighbors = new int[size];
+    System.arraycopy(neighborBuffer, 0, neighbors, 0, size);
+    neighborDistances = new int[size];
+    System.arraycopy(distanceBuffer, 0, neighborDistances, 0, size);
+  }
+
+
+  /**
+   * Gets the geometry of a board size and k, creating it on first use.
+   *
+   * @param m   Number of columns
+   * @param n   Number of rows
+   * @param k   Number of pieces in a line needed to win
+   * @return    Geometry shared by all callers with the same arguments
+   */
+  public static MnkGameGeometry get(int m, int n, int k) {
+    if (m <= 0)
+      throw new IllegalArgumentException("Non-positive m: " + m);
+    if (n <= 0)
+      throw new IllegalArgumentException("Non-positive n: " + n);
+    if (k <= 0)
+      throw new IllegalArgumentException("Non-positive k: " + k);
+    Long key = ((long) m << 42) | ((long) n << 21) | k;
+    MnkGameGeometry geometry = geometries.get(key);
+    if (geometry == null) {
+      MnkGameGeometry created = new MnkGameGeometry(m, n, k);
+      geometry = geometries.putIfAbsent(key, created);
+      if (geometry == null)
+        geometry = created;
+    }
+    return geometry;
+  }
+
+  /**
+   * Gets the number of columns.
+   *
+   * @return    Number of columns of the board
+   */
+  public int getCols() {
+    return m;
+  }
+
+  /**
+   * Gets the number of rows.
+   *
+   * @return    Number of rows of the board
+   */
+  public int getRows() {
+    return n;
+  }
+
+  /**
+   * Gets the number of pieces in a line needed to win.
+   *
+   * @return    Number of squares of a window
+   */
+  public int getK() {
+    return k;
+  }
+
+  /**
+   * Gets the number of squares of the board.
+   *
+   * @return    Number of squares, i.e. number of columns * number of rows
+   */
+  public int getSquares() {
+    return m * n;
+  }
+
+  /**
+   * Gets the number of lines of at least k squares.
+   *
+   * @return    Number of lines
+   */
+  public int getLines() {
+    return lineStarts.length - 1;
+  }
+
+  /**
+   * Gets the number of squares of a line.
+   *
+   * @param line    Line index
+   * @return        Number of squares, at least k
+   */
+  public int getLineLength(int line) {
+    return lineStarts[line + 1] - lineStarts[line];
+  }
+
+  /**
+   * Gets a square of a line, from its first square (the topmost, or the
+   * leftmost of a row).
+   *
+   * @param line    Line index
+   * @param i       Index of the square in the line
+   * @return        Square index
+   */
+  public int getLineSquare(int line, int i) {
+    return lineSquares[lineStarts[line] + i];
+  }
+
+  /**
+   * Gets the first window of a line. The line's windows are numbered
+   * consecutively from it, in the order of their first squares.
+   *
+   * @param line    Line index
+   * @return        Window index
+   */
+  public int getLineWindow(int line) {
+    return lineWindows[line];
+  }
+
+  /**
+   * Gets the line through a square in a direction.
+   *
+   * @param square      Square index
+   * @param direction   Direction, from 0 to {@link #DIRECTIONS} - 1
+   * @return            Line index, or -1 if the line is shorter than k
+   */
+  public int getLine(int square, int direction) {
+    return squareLines[square * DIRECTIONS + direction];
+  }
+
+  /**
+   * Gets the index of a square in its line in a direction.
+   *
+   * @param square      Square index
+   * @param direction   Direction, from 0 to {@link #DIRECTIONS} - 1
+   * @return            Index in the line, if the line is at least k long
+   */
+  public int getLineIndex(int square, int direction) {
+    return squareIndexes[square * DIRECTIONS + direction];
+  }
+
+  /**
+   * Gets the number of windows of k squares.
+   *
+   * @return    Number of windows
+   */
+  public int getWindows() {
+    return windowSquares.length / k;
+  }
+
+  /**
+   * Gets a square of a window, in the order of its line.
+   *
+   * @param window  Window index
+   * @param i       Index of the square in the window, less than k
+   * @return        Square index
+   */
+  public int getWindowSquare(int window, int i) {
+    return windowSquares[window * k + i];
+  }
+
+  /**
+   * Gets the number of windows through a square.
+   *
+   * @param square  Square index
+   * @return        Number of windows
+   */
+  public int getSquareWindows(int square) {
+    return squareWindowStarts[square + 1] - squareWindowStarts[square];
+  }
+
+  /**
+   * Gets a window through a square.
+   *
+   * @param square  Square index
+   * @param i       Index of the window, less than
+   *                {@link #getSquareWindows(int)}
+   * @return        Window index
+   */
+  public int getSquareWindow(int square, int i) {
+    return squareWindows[squareWindowStarts[square] + i];
+  }
+
+  /**
+   * Gets the number of squares in line with a square, in any direction, at
+   * most k - 1 steps away from it.
+   *
+   * @param square  Square index
+   * @return        Number of neighboring squares
+   */
+  public int getNeighbors(int square) {
+    return neighborStarts[square + 1] - neighborStarts[square];
+  }
+
+  /**
+   * Gets a square in line with a square, at most k - 1 steps away.
+   *
+   * @param square  Square index
+   * @param i       Index of the neighbor, less than
+   *                {@link #getNeighbors(int)}
+   * @return        Square index of the neighbor
+   */
+  public int getNeighbor(int square, int i) {
+    return neighbors[neighborStarts[square] + i];
+  }
+
+  /**
+   * Gets the number of steps from a square to one of its neighbors.
+   *
+   * @param square  Square index
+   * @param i       Index of the neighbor, less than
+   *                {@link #getNeighbors(int)}
+   * @return        Distance, from 1 to k - 1
+   */
+  public int getNeighborDistance(int square, int i) {
+    return neighborDistances[neighborStarts[square] + i];
+  }
+
+
+  private boolean isOnBoard(int row, int col) {
+    return row >= 0 && row < n && col >= 0 && col < m;
+  }
+}
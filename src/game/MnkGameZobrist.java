@@ -0,0 +1,70 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package game;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The MnkGameZobrist class holds the Zobrist keys an {@link MnkGame} hashes
+ * its positions with.
+ * <p>
+ * The keys are drawn from a fixed seed, so games with the same rules hash
+ * the same positions alike. They depend only on the number of squares and
+ * the most pieces placed in a turn, and are created once per both, by
+ * {@link #get(int, int, int, int)}, and shared by all games, in any thread.
+ * The arrays must not be modified.
+ */
+final class MnkGameZobrist {
+
+  /* Fixed seed, so that games with the same rules share Zobrist keys. */
+  private static final long SEED = 0x6d6e6b67616d65L;
+
+  private static final ConcurrentMap<Long, MnkGameZobrist> zobrists =
+      new ConcurrentHashMap<>();
+
+
+  final long[] pieceKeys; // per square and player
+  final long[] remainingKeys; // per pieces left in turn
+  final long turnKey; // for player 2 to move
+
+
+  private MnkGameZobrist(int squares, int turnMoves) {
+    Random rand = new Random(SEED);
+    pieceKeys = new long[2 * squares];
+    for (int i = 0; i < pieceKeys.length; i++)
+      pieceKeys[i] = rand.nextLong();
+    remainingKeys = new long[turnMoves + 1];
+    for (int i = 0; i < remainingKeys.length; i++)
+      remainingKeys[i] = rand.nextLong();
+    turnKey = rand.nextLong();
+  }
+
+
+  /**
+   * Gets the keys of a board size and turn rules, creating them on first
+   * use.
+   *
+   * @param m   Number of columns
+   * @param n   Number of rows
+   * @param p   Number of pieces placed per turn (except player 1's first)
+   * @param q   Number of pieces placed on player 1's first turn
+   * @return    Keys shared by all games with as many squares and pieces in
+   *            their longest turn
+   */
+  static MnkGameZobrist get(int m, int n, int p, int q) {
+    int squares = m * n;
+    int turnMoves = Math.max(p, q);
+    Long key = ((long) squares << 32) | turnMoves;
+    MnkGameZobrist zobrist = zobrists.get(key);
+    if (zobrist == null) {
+      MnkGameZobrist created = new MnkGameZobrist(squares, turnMoves);
+      zobrist = zobrists.putIfAbsent(key, created);
+      if (zobrist == null)
+        zobrist = created;
+    }
+    return zobrist;
+  }
+}
@@ -6,9 +6,6 @@ package search;
 import eval.MnkGameEvaluator;
 import game.MnkGame;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * @author Vance Zuo
  * @created Jan 8, 2015
@@ -16,66 +13,337 @@ import java.util.List;
  */
 public class MnkGameAlphabetaSearcher extends MnkGameSearcher {
 
+  /** Default size of the transposition table, in megabytes. */
+  public static final int DEFAULT_TABLE_SIZE = 16;
+
+  /** Default half-width of the aspiration window around the last score. */
+  public static final int DEFAULT_ASPIRATION_WINDOW = 4;
+
+  /** Default size of the threat solver's own table, in megabytes. */
+  public static final int DEFAULT_THREAT_TABLE_SIZE = 4;
+
+  /** Default number of nodes each threat search may take. */
+  public static final int DEFAULT_THREAT_NODES = 1 << 10;
+
+  private static final int MAX_ASPIRATION_FAILS = 3; // before opening fully
+
+
+  private MnkGameTranspositionTable table;
+  private boolean proof; // of the score last returned by search(int, int, int)
+  private int aspiration;
+  private long lastHash; // position the last score was searched for
+  private int lastScore;
+  private boolean hasLastScore;
+  private MnkGameThreatSolver threats;
+  private int threatDepth;
+
+
   public MnkGameAlphabetaSearcher(MnkGame game,
       Class<? extends MnkGameEvaluator> eval) {
     super(game, eval);
+    aspiration = DEFAULT_ASPIRATION_WINDOW;
+    threatDepth = -1;
   }
 
 
+  /* Searches with an aspiration window around the last score of the
+   * position, if any. A window the score falls outside of is widened on
+   * that side, doubling its width each time, and searched again; after a
+   * few failures that side is opened fully, e.g. for a win. */
   @Override
   public Result search(int depth) {
-    return search(depth, MnkGameEvaluator.MIN_SCORE - 1, MnkGameEvaluator.MAX_SCORE + 1);
+    setRoot();
+    int alpha = MnkGameEvaluator.MIN_SCORE - 1;
+    int beta = MnkGameEvaluator.MAX_SCORE + 1;
+    int guess = getLastScore();
+    int width = aspiration;
+    if (width > 0 && hasLastScore()
+        && Math.abs(guess) < MnkGameEvaluator.MAX_SCORE / 2) {
+      alpha = guess - width;
+      beta = guess + width;
+    }
+    for (int fails = 1; ; fails++) {
+      int score = search(depth, alpha, beta);
+      if (Thread.currentThread().isInterrupted())
+        return null;
+      width *= 2;
+      boolean open = fails >= MAX_ASPIRATION_FAILS;
+      if (score <= alpha && alpha >= MnkGameEvaluator.MIN_SCORE) {
+        alpha = open ? MnkGameEvaluator.MIN_SCORE - 1 : guess - width;
+      } else if (score >= beta && beta <= MnkGameEvaluator.MAX_SCORE) {
+        beta = open ? MnkGameEvaluator.MAX_SCORE + 1 : guess + width;
+      } else {
+        setLastScore(score);
+        return createResult(score, proof);
+      }
+    }
+  }
+
+  /**
+   * Sets the half-width of the aspiration window each search starts with,
+   * around the last score of the position. Zero disables aspiration
+   * windows, so that searches always use the full window.
+   *
+   * @param width   Half-width of the window, in score units
+   */
+  public void setAspirationWindow(int width) {
+    if (width < 0)
+      throw new IllegalArgumentException("Negative window: " + width);
+    aspiration = width;
   }
 
+  public int getAspirationWindow() {
+    return aspiration;
+  }
 
-  protected Iterable<Integer> generateMoves() {
-    return getGame().generatePseudolegalMoves();
+  /**
+   * Sets the remaining depth at or below which positions, other than the
+   * root, are first searched for a win of the player to move by continuous
+   * fours, e.g. zero for the leaves only. Wins found are scored as proven,
+   * as the end of the game would be. A negative depth, the default,
+   * disables these threat searches.
+   *
+   * @param depth   Greatest remaining depth to search threats at
+   */
+  public void setThreatDepth(int depth) {
+    threatDepth = depth;
   }
 
+  public int getThreatDepth() {
+    return threatDepth;
+  }
+
+  /**
+   * Gets the solver of the threat searches, e.g. for its statistics. It
+   * searches only continuous fours, within a few nodes each time, and has
+   * a table of its own.
+   *
+   * @return    Threat solver of the searcher's game
+   */
+  public MnkGameThreatSolver getThreatSolver() {
+    if (threats == null) {
+      threats = new MnkGameThreatSolver(getGame());
+      threats.setMaxThrees(0);
+      threats.setMaxNodes(DEFAULT_THREAT_NODES);
+      threats.setTranspositionTable(
+          new MnkGameTranspositionTable(DEFAULT_THREAT_TABLE_SIZE));
+    }
+    return threats;
+  }
+
+  public void setTranspositionTable(MnkGameTranspositionTable table) {
+    this.table = table;
+  }
+
+  public MnkGameTranspositionTable getTranspositionTable() {
+    if (table == null)
+      table = new MnkGameTranspositionTable(DEFAULT_TABLE_SIZE);
+    return table;
+  }
+
+
+  @Override
+  protected int generateMoves(int[] moves) {
+    return getGame().generatePseudolegalMoves(moves);
+  }
+
+  @Override
   protected int numMoves() {
     return getGame().getPseudolegalMoves();
   }
 
+  /* Checks if the current position has been searched before, i.e. by the
+   * previous iteration. */
+  protected final boolean hasLastScore() {
+    return hasLastScore && lastHash == getGame().getHash();
+  }
 
-  private Result search(int depth, int alpha, int beta) {
+  /* Gets the last score searched for the current position, or its static
+   * evaluation if it has not been searched. */
+  protected final int getLastScore() {
+    return hasLastScore() ? lastScore : getEvaluator().evaluate();
+  }
+
+  protected final void setLastScore(int score) {
+    lastHash = getGame().getHash();
+    lastScore = score;
+    hasLastScore = true;
+  }
+
+  /* Searches the current position for a win of the player to move by
+   * threats, if within the threat depth. Returns the proven score of the
+   * win, or 0 if none was found. */
+  protected final int searchThreats(int depth) {
+    if (depth > threatDepth)
+      return 0;
+    Result result = getThreatSolver().solve();
+    return (result == null) ? 0 : result.getScore();
+  }
+
+  /* Moves the move, if among the moves, to the front of the list without
+   * changing the order of the others. Returns whether it was found. */
+  protected static boolean moveToFront(int[] moves, int numMoves, int move) {
+    for (int i = 0; i < numMoves; i++) {
+      if (moves[i] == move) {
+        System.arraycopy(moves, 0, moves, 1, i);
+        moves[0] = move;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* Puts the previous iteration's principal variation move, then the hash
+   * move, at the front of the moves. Returns how many moves were put there,
+   * which selectMove() then leaves in place. */
+  protected final int orderFirstMoves(int[] moves, int numMoves, int hashMove) {
+    int ordered = 0;
+    if (hashMove >= 0 && moveToFront(moves, numMoves, hashMove))
+      ordered++;
+    int pvMove = getLastPvMove();
+    if (pvMove >= 0 && pvMove != hashMove
+        && moveToFront(moves, numMoves, pvMove))
+      ordered++;
+    return ordered;
+  }
+
+  /* Checks if search(int, int, int) returns the best score found even if
+   * outside the window (fail-soft), rather than the window's bound. Scores
+   * are bounded by the window by default (fail-hard). */
+  protected boolean isFailSoft() {
+    return false;
+  }
+
+  /* Checks if the score last returned by search(int, int, int) is proven. */
+  protected final boolean isProvenScore() {
+    return proof;
+  }
+
+  /* Swaps the move to be searched i-th into place, from among the moves
+   * not yet searched. The moves are left in generated order by default. */
+  protected void selectMove(int[] moves, int i, int numMoves) {
+  }
+
+  /* Notes that the move caused a cutoff at the current node, searched to
+   * the depth. Does nothing by default. */
+  protected void recordCutoff(int move, int depth) {
+  }
+
+
+  /* Searches the position after the i-th move of a node's ordered moves,
+   * already played, within the node's current window. Subclasses may
+   * search it differently, e.g. with a narrower window first. */
+  protected int searchChild(int i, int depth, int alpha, int beta,
+      boolean maxi) {
+    return search(depth, alpha, beta);
+  }
+
+  /* Searches the current position, returning its score, or a bound on it
+   * if outside the window, see isFailSoft(); whether the score is proven
+   * is left in the proof field. */
+  protected final int search(int depth, int alpha, int beta) {
     incrementNodeCount();
+    clearPv();
+
+    if (getGame().isGameOver()) {
+      proof = true;
+      return getEvaluator().evaluate();
+    }
+    // not at the root, which must produce a move
+    if (!isRoot()) {
+      int score = searchThreats(depth);
+      if (score != 0) {
+        proof = true;
+        return score;
+      }
+    }
+    if (depth <= 0) {
+      proof = false;
+      return getEvaluator().evaluate();
+    }
 
-    if (getGame().isGameOver())
-      return new Result(getEvaluator().evaluate(), null, true);
-    if (depth <= 0)
-      return new Result(getEvaluator().evaluate(), null, false);
+    MnkGameTranspositionTable table = getTranspositionTable();
+    long hash = getGame().getHash();
+    long entry = table.probe(hash);
+    int hashMove = -1;
+    if (entry != MnkGameTranspositionTable.NO_ENTRY) {
+      hashMove = MnkGameTranspositionTable.getMove(entry);
+      // no cutoffs at the root, which must produce a move
+      if (!isRoot() && MnkGameTranspositionTable.getDepth(entry) >= depth) {
+        int score = MnkGameTranspositionTable.getScore(entry);
+        int bound = MnkGameTranspositionTable.getBound(entry);
+        if (bound == MnkGameTranspositionTable.BOUND_EXACT
+            || (bound == MnkGameTranspositionTable.BOUND_LOWER && score >= beta)
+            || (bound == MnkGameTranspositionTable.BOUND_UPPER && score <= alpha)) {
+          proof = MnkGameTranspositionTable.isProvenResult(entry);
+          return score;
+        }
+      }
+    }
 
     boolean maxi = getGame().getCurrentPlayer() == MnkGameEvaluator.PLAYER_MAX;
+    int alphaStart = alpha;
+    int betaStart = beta;
 
-    List<Integer> pv = new ArrayList<>(depth);
-    boolean proof = false;
-    for (int move : generateMoves()) {
+    int best = maxi ? alpha : beta; // unless fail-soft, the score is no worse
+    if (isFailSoft())
+      best = maxi ? MnkGameEvaluator.MIN_SCORE - 1
+                  : MnkGameEvaluator.MAX_SCORE + 1;
+    boolean nodeProof = false;
+    int bestMove = -1;
+    int[] moves = getMoveBuffer();
+    int numMoves = 1;
+    int ordered = 1;
+    moves[0] = getForcedMove(getGame());
+    if (moves[0] < 0) {
+      numMoves = generateMoves(moves);
+      ordered = orderFirstMoves(moves, numMoves, hashMove);
+    }
+    for (int i = 0; i < numMoves; i++) {
+      if (i >= ordered)
+        selectMove(moves, i, numMoves);
+      int move = moves[i];
       getGame().doMove(move, false);
-      Result result = search(depth - 1, alpha, beta);
+      int score = searchChild(i, depth - 1, alpha, beta, maxi);
       getGame().undoMove();
       if (Thread.currentThread().isInterrupted())
-        return null;
-      int score = result.getScore();
-      if (maxi ? score > alpha : score < beta) {
-        if (maxi) alpha = score; else beta = score;
-        proof = result.isProvenResult();
-        if (alpha >= beta)
+        return 0;
+      if (maxi ? score > best : score < best) {
+        best = score;
+        nodeProof = proof;
+        bestMove = move;
+        updatePv(move);
+        if (maxi)
+          alpha = Math.max(alpha, best);
+        else
+          beta = Math.min(beta, best);
+        if (alpha >= beta) {
+          recordCutoff(move, depth);
           break;
-        pv.clear();
-        pv.add(move);
-        if (result.getPrincipleVaration() != null)
-          pv.addAll(result.getPrincipleVaration());
+        }
       }
     }
 
-    int score = maxi ? alpha : beta;
+    int score = best;
+    int bound = MnkGameTranspositionTable.BOUND_EXACT;
+    if (score <= alphaStart) {
+      bound = MnkGameTranspositionTable.BOUND_UPPER;
+    } else if (score >= betaStart) {
+      bound = MnkGameTranspositionTable.BOUND_LOWER;
+    }
     if (score == MnkGameEvaluator.MIN_SCORE + depth - 1) {
       score++;
     } else if (score == MnkGameEvaluator.MAX_SCORE - depth + 1) {
       score--;
     }
+    // only a move that narrowed the window is known to be best
+    if (bound == (maxi ? MnkGameTranspositionTable.BOUND_UPPER
+                       : MnkGameTranspositionTable.BOUND_LOWER))
+      bestMove = hashMove;
+    table.store(hash, bestMove, score, bound, depth, nodeProof);
 
-    return new Result(score, pv, proof);
+    proof = nodeProof;
+    return score;
   }
 
 }
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import game.MnkGame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MnkGameDfpnSolver class finds the game-theoretic value of a position
+ * with depth-first proof-number search (df-pn).
+ * <p>
+ * Df-pn expands nodes in the same order as proof-number search, but does so
+ * depth first: it stays in a subtree until the subtree's proof or disproof
+ * number reaches a threshold, i.e. until another subtree becomes the most
+ * proving, and keeps the numbers of searched positions in a
+ * {@link MnkGameProofTable} rather than in a tree. The table has a fixed
+ * size, so memory stays bounded however long the search runs; positions
+ * reached by different move orders also share one entry. Thresholds of the
+ * most proving child are set with the 1 + epsilon trick, so that the search
+ * does not switch back and forth between two similar children.
+ */
+public class MnkGameDfpnSolver extends MnkGameSolver {
+
+  private static final int INFINITY = Integer.MAX_VALUE / 2;
+  private static final int EPSILON_DIVISOR = 4; // epsilon of 1/4
+
+
+  private final MnkGame game;
+  private MnkGameProofTable table;
+  private int tableSize; // in megabytes
+  private int attacker; // of the current search
+  private int[][] moveBuffers; // per ply of the game
+  private long work; // nodes searched in the current search
+  private boolean aborted;
+
+  // numbers of the child last looked up by lookUpChild()
+  private int childProof, childDisproof, childWork;
+
+
+  public MnkGameDfpnSolver(MnkGame game) {
+    super(game);
+    this.game = game;
+    moveBuffers = new int[game.getSquares() + 1][];
+  }
+
+
+  @Override
+  public MnkGameSearcher.Result solve() {
+    if (table == null || tableSize != getMemorySize()) {
+      table = null; // let the old table be collected first
+      table = new MnkGameProofTable(getMemorySize());
+      tableSize = getMemorySize();
+    }
+    int player = game.getCurrentPlayer();
+    if (game.isGameOver())
+      return createResult(game.getWinner(), new ArrayList<Integer>());
+    if (!search(player))
+      return null;
+    if (isProven())
+      return createResult(player, getLine(true));
+    if (!search(-player))
+      return null;
+    if (isProven())
+      return createResult(-player, getLine(true));
+    return createResult(MnkGame.PLAYER_NONE, getLine(false));
+  }
+
+  /**
+   * Gets the table of the last solve, e.g. for its statistics.
+   *
+   * @return    Proof table, or null if nothing has been solved yet
+   */
+  public MnkGameProofTable getTable() {
+    return table;
+  }
+
+
+  /* Searches until the root is proven or disproven to be a win for the
+   * attacker. Returns false if the search was interrupted first. */
+  private boolean search(int attacker) {
+    this.attacker = attacker;
+    table.clear();
+    work = 0;
+    aborted = false;
+    while (!aborted && !isSolved()) // again if the root entry was replaced
+      search(INFINITY, INFINITY);
+    return !aborted;
+  }
+
+  /* Searches the current position until its proof number reaches the
+   * proof threshold, or its disproof number the disproof threshold, and
+   * stores its numbers. */
+  private void search(int proofThreshold, int disproofThreshold) {
+    long workStart = work++;
+    incrementNodeCount();
+    if (Thread.currentThread().isInterrupted()) {
+      aborted = true;
+      return;
+    }
+
+    boolean or = game.getCurrentPlayer() == attacker;
+    long hash = game.getHash();
+    int ply = game.getElapsedPly();
+    if (moveBuffers[ply] == null)
+      moveBuffers[ply] = new int[game.getSquares()];
+    int[] moves = moveBuffers[ply];
+    int numMoves = game.generateInOutPseudolegalMoves(moves);
+
+    while (true) {
+      // OR nodes take the least proof number of the children and the sum
+      // of their disproof numbers; AND nodes the reverse
+      int min = INFINITY;
+      int second = INFINITY;
+      int sum = 0;
+      int best = -1;
+      int bestSum = 0;
+      for (int i = 0; i < numMoves; i++) {
+        lookUpChild(moves[i]);
+        int minNumber = or ? childProof : childDisproof;
+        int sumNumber = or ? childDisproof : childProof;
+        if (minNumber < min) {
+          second = min;
+          min = minNumber;
+          best = i;
+          bestSum = sumNumber;
+        } else if (minNumber < second) {
+          second = minNumber;
+        }
+        sum = Math.min(sum + sumNumber, INFINITY);
+      }
+      int minThreshold = or ? proofThreshold : disproofThreshold;
+      int sumThreshold = or ? disproofThreshold : proofThreshold;
+      if (min >= minThreshold || sum >= sumThreshold || aborted) {
+        table.store(hash, or ? min : sum, or ? sum : min, work - workStart);
+        return;
+      }
+
+      int childMinThreshold = (int) Math.min(minThreshold,
+          second + 1L + second / EPSILON_DIVISOR);
+      int childSumThreshold = sumThreshold - sum + bestSum;
+      game.doMove(moves[best], false);
+      if (or) {
+        search(childMinThreshold, childSumThreshold);
+      } else {
+        search(childSumThreshold, childMinThreshold);
+      }
+      game.undoMove(false);
+    }
+  }
+
+  /* Looks up the numbers of the position after the move, which are exact
+   * if it ends the game, and 1 if it has not been searched. */
+  private void lookUpChild(int move) {
+    game.doMove(move, false);
+    if (game.isGameOver()) {
+      boolean won = game.getWinner() == attacker;
+      childProof = won ? 0 : INFINITY;
+      childDisproof = won ? INFINITY : 0;
+      childWork = 0;
+    } else {
+      int slot = table.probe(game.getHash());
+      if (slot >= 0) {
+        childProof = table.getProof(slot);
+        childDisproof = table.getDisproof(slot);
+        childWork = table.getWork(slot);
+      } else {
+        childProof = 1;
+        childDisproof = 1;
+        childWork = 0;
+      }
+    }
+    game.undoMove(false);
+  }
+
+  private boolean isProven() {
+    int slot = table.probe(game.getHash());
+    return slot >= 0 && table.getProof(slot) == 0;
+  }
+
+  private boolean isSolved() {
+    int slot = table.probe(game.getHash());
+    return slot >= 0
+        && (table.getProof(slot) == 0 || table.getDisproof(slot) == 0);
+  }
+
+  /* Gets a line of the last search's proof (or disproof) from the table.
+   * A winning line prefers immediate wins, then the least work for the
+   * winner and the most for the loser; a drawn line prefers moves that do
+   * not end the game with a win, then the most work. The line stops early
+   * if the entries it needs were replaced. */
+  private List<Integer> getLine(boolean proven) {
+    List<Integer> line = new ArrayList<>();
+    int[] moves = new int[game.getSquares()];
+    while (!game.isGameOver()) {
+      boolean winner = proven && game.getCurrentPlayer() == attacker;
+      int numMoves = game.generateInOutPseudolegalMoves(moves);
+      int best = -1;
+      long bestRating = 0; // lower is better
+      for (int i = 0; i < numMoves; i++) {
+        lookUpChild(moves[i]);
+        if ((proven ? childProof : childDisproof) != 0)
+          continue;
+        game.doMove(moves[i], false);
+        boolean won = game.hasWinner();
+        game.undoMove(false);
+        long rating;
+        if (winner) {
+          rating = won ? -1 : childWork;
+        } else if (proven) {
+          rating = -childWork;
+        } else {
+          rating = (won ? 1L << 32 : 0) - childWork;
+        }
+        if (best < 0 || rating < bestRating) {
+          best = moves[i];
+          bestRating = rating;
+        }
+      }
+      if (best < 0)
+        break;
+      line.add(best);
+      game.doMove(best, false);
+    }
+    for (int i = 0; i < line.size(); i++)
+      game.undoMove(false);
+    return line;
+  }
+}
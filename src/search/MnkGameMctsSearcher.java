@@ -0,0 +1,693 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import eval.MnkGameEvaluator;
+import game.MnkGame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The MnkGameMctsSearcher class is a Monte Carlo tree searcher using UCT.
+ * <p>
+ * Rather than searching every move to a depth, it plays out games with
+ * random moves to the end, and grows a tree towards the moves whose
+ * playouts are won the most. Each playout walks down the tree choosing the
+ * child with the best upper confidence bound (UCT), i.e. its win rate plus
+ * an exploration term that grows for children visited less than their
+ * siblings, expands the leaf it reaches once it has been visited before,
+ * and adds its result to every node on the way. The best move is the most
+ * visited one. Results of finished games are also proven up the tree, so
+ * that small games are solved (MCTS-Solver).
+ * <p>
+ * The search is meant to be given a time rather than a depth: each
+ * iteration doubles the playouts of the root, and an interrupted iteration
+ * still yields a result. Nodes are kept in parallel primitive arrays, with
+ * the children of a node stored next to each other, so a node takes a few
+ * ints and no objects; the arrays are allocated at the tree size, after
+ * which leaves are no longer expanded. The score of an unproven result is
+ * the win rate of the best move, scaled from -{@link #SCORE_SCALE} for a
+ * sure loss of player 1 to {@link #SCORE_SCALE} for a sure win.
+ * <p>
+ * The tree is kept between searches. When the game has moved on, e.g. by
+ * the searcher's move and the opponent's reply, the subtree of the new
+ * position is kept, so its playouts are not lost, and the rest discarded.
+ * <p>
+ * Playouts are random to the end of the game by default, played by a
+ * {@link MnkGamePlayoutEngine} on a scratch copy of the position. With a
+ * playout length, they instead stop after that many moves, and the
+ * evaluator's score decides the result: a win for the player it favors,
+ * or a draw.
+ * <p>
+ * With more than one thread, every thread plays out its own copy of the
+ * game through the one shared tree. Node statistics are atomic, and a leaf
+ * is claimed by compare-and-set before it is expanded, so no locks are
+ * taken. A visit is counted when a thread enters a node, but its reward
+ * only when the playout ends, so a playout in progress counts as a loss
+ * (a virtual loss) and other threads tend to choose other children.
+ */
+public class MnkGameMctsSearcher extends MnkGameSearcher {
+
+  /** Default memory the tree may use, in megabytes. */
+  public static final int DEFAULT_TREE_SIZE = 64;
+
+  /** Default weight of the exploration term of UCT. */
+  public static final double DEFAULT_EXPLORATION = 1.0;
+
+  /** Score of a sure win, if not yet proven. */
+  public static final int SCORE_SCALE = 1000;
+
+  private static final int NODE_BYTES = 6 * 4;
+  private static final int EXPAND_VISITS = 2; // visits before expanding
+  private static final int ITERATION_PLAYOUTS = 1 << 8; // of the first
+  private static final int MAX_PLAYOUTS = 1 << 30; // of the root
+  private static final int ROOT = 0;
+
+  // First child of nodes without children
+  private static final int UNEXPANDED = -1;
+  private static final int EXPANDING = -2; // claimed by a thread
+
+  // Proven results, for the player who moved into the node
+  private static final int UNKNOWN = 0;
+  private static final int WIN = 1;
+  private static final int DRAW = 2;
+  private static final int LOSS = 3;
+
+
+  /* Copy of the game, and its playout state, for one search thread. */
+  private class Worker {
+    final MnkGame game;
+    final MnkGameEvaluator eval;
+    final int[] path; // nodes from the root to the playout
+    final int[] players; // who moved into each node of the path
+    final int[] moveBuffer;
+    final MnkGamePlayoutEngine engine;
+    final Random random;
+    long nodes;
+    long playouts;
+
+    public Worker(MnkGame game, MnkGameEvaluator eval) {
+      this.game = game;
+      this.eval = eval;
+      path = new int[game.getSquares() + 1];
+      players = new int[game.getSquares() + 1];
+      moveBuffer = new int[game.getSquares()];
+      engine = new MnkGamePlayoutEngine(game);
+      random = new Random();
+    }
+
+    /* Brings the game to the position after the moves in the path. */
+    public void sync(int[] path) {
+      int common = 0;
+      while (common < game.getElapsedPly() && common < path.length
+          && game.getHistory(common) == path[common])
+        common++;
+      while (game.getElapsedPly() > common)
+        game.undoMove(false);
+      for (int i = common; i < path.length; i++)
+        game.doMove(path[i], false);
+    }
+
+    /* Plays out a game from the root, through the tree and past a leaf,
+     * and adds its result to the nodes on the way. */
+    public void playout() {
+      int depth = 0;
+      int node = ROOT;
+      path[0] = ROOT;
+      players[0] = -game.getCurrentPlayer();
+      visits.incrementAndGet(ROOT);
+      while (children.get(node) >= 0 && results.get(node) == UNKNOWN) {
+        node = selectChild(node);
+        depth = descend(node, depth);
+      }
+      if (results.get(node) == UNKNOWN && (node == ROOT
+          || visits.get(node) >= EXPAND_VISITS)
+          && expand(node, players[depth])) {
+        if (results.get(node) == UNKNOWN) {
+          node = selectChild(node);
+          depth = descend(node, depth);
+        }
+      }
+      int winner;
+      if (results.get(node) != UNKNOWN) {
+        winner = getWinner(results.get(node), players[depth]);
+      } else {
+        winner = simulate();
+      }
+      playouts++;
+
+      for (int i = depth; i >= 0; i--) {
+        node = path[i];
+        if (winner == players[i]) {
+          rewards.addAndGet(node, 2);
+        } else if (winner == MnkGame.PLAYER_NONE) {
+          rewards.addAndGet(node, 1);
+        }
+        if (i < depth && results.get(path[i + 1]) != UNKNOWN
+            && results.get(node) == UNKNOWN)
+          prove(node, players[i], game.getCurrentPlayer());
+        if (i > 0)
+          game.undoMove(false);
+      }
+    }
+
+    /* Plays the move into the node, adding it to the path and counting
+     * the visit. */
+    private int descend(int node, int depth) {
+      nodes++;
+      visits.incrementAndGet(node);
+      players[depth + 1] = game.getCurrentPlayer();
+      game.doMove(moves[node], false);
+      path[depth + 1] = node;
+      return depth + 1;
+    }
+
+    /* Creates the children of a leaf, proving those that end the game.
+     * Returns false if another thread is expanding it or the tree is
+     * full. */
+    private boolean expand(int node, int player) {
+      if (!children.compareAndSet(node, UNEXPANDED, EXPANDING))
+        return false;
+      int numMoves = game.generateInOutPseudolegalMoves(moveBuffer);
+      int first = allocate(numMoves);
+      if (first < 0) {
+        children.set(node, UNEXPANDED);
+        return false;
+      }
+      boolean proven = false;
+      for (int i = 0; i < numMoves; i++) {
+        int child = first + i;
+        initializeNode(child, moveBuffer[i]);
+        game.doMove(moveBuffer[i], false);
+        if (game.isGameOver()) {
+          results.set(child, game.hasWinner() ? WIN : DRAW);
+          proven = true;
+        }
+        game.undoMove(false);
+      }
+      numChildren[node] = numMoves;
+      children.set(node, first); // publishes the children
+      if (proven)
+        prove(node, player, game.getCurrentPlayer());
+      return true;
+    }
+
+    /* Plays random moves to the end of the game, or to the playout
+     * length, then takes them back. Returns the winner, as far as the
+     * evaluator can tell if the game did not end. */
+    private int simulate() {
+      if (playoutLength < 0) {
+        long moves = engine.getMoveCount();
+        int winner = engine.playout();
+        nodes += engine.getMoveCount() - moves;
+        return winner;
+      }
+      int plies = 0;
+      while (!game.isGameOver() && plies != playoutLength) {
+        int numMoves = game.generatePseudolegalMoves(moveBuffer);
+        game.doMove(moveBuffer[random.nextInt(numMoves)], false);
+        nodes++;
+        plies++;
+      }
+      int winner = game.getWinner();
+      if (!game.isGameOver()) {
+        int score = eval.evaluate();
+        if (score != 0)
+          winner = (score > 0) ? MnkGameEvaluator.PLAYER_MAX
+              : MnkGameEvaluator.PLAYER_MIN;
+      }
+      for (int i = 0; i < plies; i++)
+        game.undoMove(false);
+      return winner;
+    }
+  }
+
+
+  // Nodes; numChildren and moves are written before the first child of
+  // their parent is published, and read after it
+  private AtomicIntegerArray children; // first child, per node
+  private int[] numChildren;
+  private int[] moves; // move leading to the node
+  private AtomicIntegerArray visits;
+  private AtomicIntegerArray rewards; // 2 per win, 1 per draw, for the mover
+  private AtomicIntegerArray results;
+  private final AtomicInteger size;
+  private int maxNodes;
+  private int[] rootHistory; // moves to the root's position, if size > 0
+
+  private final Worker worker; // of the calling thread
+  private Worker[] helpers;
+  private ForkJoinPool pool; // runs the helpers; null if there are none
+  private volatile boolean stopped;
+  private double exploration;
+  private int playoutLength; // -1 to play out to the end
+  private long playouts;
+
+
+  public MnkGameMctsSearcher(MnkGame game,
+      Class<? extends MnkGameEvaluator> eval) {
+    super(game, eval);
+    size = new AtomicInteger();
+    worker = new Worker(game, getEvaluator());
+    helpers = new Worker[0];
+    exploration = DEFAULT_EXPLORATION;
+    playoutLength = -1;
+    setTreeSize(DEFAULT_TREE_SIZE);
+  }
+
+
+  /**
+   * Searches until the root has been played out a number of times that
+   * doubles with the depth, starting from the tree of earlier searches of
+   * the position or of the positions before it.
+   *
+   * @param depth   Iteration of the search
+   * @return        Result of the search, or null if it was interrupted
+   */
+  @Override
+  public Result search(int depth) {
+    if (getGame().isGameOver())
+      return new Result(getEvaluator().evaluate(), new ArrayList<Integer>(),
+          true);
+    prepareTree();
+    long target = Math.min(MAX_PLAYOUTS,
+        (long) ITERATION_PLAYOUTS << Math.min(depth - 1, 32));
+
+    stopped = false;
+    final int[] history = getGame().getHistory();
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(helpers.length);
+    for (final Worker helper : helpers) {
+      tasks.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          helper.sync(history);
+          while (!stopped)
+            helper.playout();
+        }
+      }));
+    }
+    boolean interrupted = false;
+    try {
+      while (visits.get(ROOT) < target && results.get(ROOT) == UNKNOWN) {
+        if (Thread.currentThread().isInterrupted()) {
+          interrupted = true;
+          break;
+        }
+        worker.playout();
+      }
+    } finally {
+      stopped = true;
+      for (ForkJoinTask<?> task : tasks)
+        task.quietlyJoin(); // let the helpers finish their playouts
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      if (task.isCompletedAbnormally())
+        throw new IllegalStateException(task.getException());
+    }
+    collectCounts(worker);
+    for (Worker helper : helpers)
+      collectCounts(helper);
+    return interrupted ? null : createResult();
+  }
+
+  /**
+   * Searches with successively more playouts, until the last iteration, a
+   * proven result, or an interrupt. As the tree has a result whenever the
+   * search stops, an interrupted iteration is reported too.
+   */
+  @Override
+  public Result searchIteratively(int startDepth, int maxDepth,
+      IterationListener listener) {
+    Result best = null;
+    for (int i = startDepth; i <= maxDepth; i++) {
+      Result result = search(i);
+      boolean interrupted = result == null;
+      if (interrupted)
+        result = createResult();
+      if (result == null)
+        break;
+      best = result;
+      if (listener != null)
+        listener.iterationFinished(i, result);
+      if (interrupted || result.isProvenResult()
+          || visits.get(ROOT) >= MAX_PLAYOUTS)
+        break;
+    }
+    return best;
+  }
+
+  /**
+   * Sets the number of threads to play out with, including the calling
+   * thread. Any search in progress keeps using the previous threads.
+   *
+   * @param threads   Number of threads to search with
+   */
+  public void setParallelism(int threads) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Non-positive threads: " + threads);
+    if (threads == getParallelism())
+      return;
+    if (pool != null)
+      pool.shutdown();
+    pool = (threads > 1) ? new ForkJoinPool(threads - 1) : null;
+    helpers = new Worker[threads - 1];
+    for (int i = 0; i < helpers.length; i++) {
+      MnkGame game = new MnkGame(getGame());
+      helpers[i] = new Worker(game, createEvaluator(game));
+    }
+  }
+
+  public int getParallelism() {
+    return helpers.length + 1;
+  }
+
+  /**
+   * Stops the helper threads. Any search in progress keeps using them
+   * until it finishes.
+   */
+  @Override
+  public void shutdown() {
+    if (pool != null)
+      pool.shutdown();
+  }
+
+  /**
+   * Sets the memory the tree may use. Once it is full, playouts go on
+   * from its leaves without expanding them.
+   *
+   * @param megabytes   Tree size in megabytes
+   */
+  public void setTreeSize(int megabytes) {
+    if (megabytes <= 0)
+      throw new IllegalArgumentException("Non-positive size: " + megabytes);
+    maxNodes = (int) Math.min(Integer.MAX_VALUE - 8,
+        megabytes * (1L << 20) / NODE_BYTES);
+  }
+
+  public int getTreeSize() {
+    return (int) ((long) maxNodes * NODE_BYTES >> 20);
+  }
+
+  /**
+   * Sets the weight of the exploration term of UCT. Higher weights try
+   * less visited moves more often.
+   *
+   * @param weight    Exploration weight
+   */
+  public void setExploration(double weight) {
+    if (!(weight >= 0))
+      throw new IllegalArgumentException("Invalid exploration: " + weight);
+    exploration = weight;
+  }
+
+  public double getExploration() {
+    return exploration;
+  }
+
+  /**
+   * Sets the number of random moves of a playout, after which its result
+   * is decided by the evaluator rather than by playing on.
+   *
+   * @param plies   Playout length, or -1 to play out to the end
+   */
+  public void setPlayoutLength(int plies) {
+    if (plies < -1)
+      throw new IllegalArgumentException("Invalid playout length: " + plies);
+    playoutLength = plies;
+  }
+
+  public int getPlayoutLength() {
+    return playoutLength;
+  }
+
+  /**
+   * Gets the number of playouts of all searches so far.
+   *
+   * @return    Number of playouts
+   */
+  public long getPlayouts() {
+    return playouts;
+  }
+
+  /**
+   * Gets the number of nodes in the tree.
+   *
+   * @return    Tree size in nodes
+   */
+  public int getTreeNodes() {
+    return size.get();
+  }
+
+
+  /* Prepares the tree for a search of the game's position. If the tree's
+   * root is an earlier position of the game, and the moves played since are
+   * in the tree, the subtree of the position is kept and moved to the
+   * front of the arrays; otherwise a new tree is started. */
+  private void prepareTree() {
+    int[] history = getGame().getHistory();
+    if (visits != null && visits.length() == maxNodes && size.get() > 0) {
+      int root = findNode(history);
+      if (root == ROOT)
+        return;
+      if (root > ROOT) {
+        compact(root);
+        rootHistory = history;
+        return;
+      }
+    }
+    if (visits == null || visits.length() != maxNodes) {
+      children = null; // let the old tree be collected first
+      numChildren = null;
+      moves = null;
+      visits = null;
+      rewards = null;
+      results = null;
+      children = new AtomicIntegerArray(maxNodes);
+      numChildren = new int[maxNodes];
+      moves = new int[maxNodes];
+      visits = new AtomicIntegerArray(maxNodes);
+      rewards = new AtomicIntegerArray(maxNodes);
+      results = new AtomicIntegerArray(maxNodes);
+    }
+    rootHistory = history;
+    size.set(1);
+    initializeNode(ROOT, -1);
+  }
+
+  /* Gets the node of the position after the moves, following the moves
+   * played since the root. Returns -1 if it is not in the tree. */
+  private int findNode(int[] history) {
+    if (history.length < rootHistory.length)
+      return -1;
+    for (int i = 0; i < rootHistory.length; i++) {
+      if (history[i] != rootHistory[i])
+        return -1;
+    }
+    int node = ROOT;
+    for (int i = rootHistory.length; i < history.length && node >= 0; i++) {
+      int first = children.get(node);
+      int end = first + numChildren[node];
+      node = -1;
+      for (int child = first; child < end; child++) {
+        if (moves[child] == history[i]) {
+          node = child;
+          break;
+        }
+      }
+    }
+    return node;
+  }
+
+  /* Makes the node the root, keeping its subtree and discarding the rest
+   * of the tree. Kept nodes are moved down in the order they were created,
+   * in which a node comes after its ancestors and children stay next to
+   * each other; so every node moves to an index no greater than its own,
+   * and the arrays are compacted in place. */
+  private void compact(int root) {
+    int oldSize = size.get();
+    int[] forward = new int[oldSize]; // new index per old node, or -1
+    Arrays.fill(forward, -1);
+    int[] queue = new int[oldSize - root];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = root;
+    forward[root] = 0;
+    while (head < tail) {
+      int node = queue[head++];
+      int first = children.get(node);
+      if (first < 0)
+        continue;
+      int end = first + numChildren[node];
+      for (int child = first; child < end; child++) {
+        forward[child] = 0;
+        queue[tail++] = child;
+      }
+    }
+    int newSize = 0;
+    for (int node = root; node < oldSize; node++) {
+      if (forward[node] >= 0)
+        forward[node] = newSize++;
+    }
+    for (int node = root; node < oldSize; node++) {
+      int to = forward[node];
+      if (to < 0)
+        continue;
+      int first = children.get(node);
+      children.set(to, (first >= 0) ? forward[first] : first);
+      numChildren[to] = numChildren[node];
+      moves[to] = moves[node];
+      visits.set(to, visits.get(node));
+      rewards.set(to, rewards.get(node));
+      results.set(to, results.get(node));
+    }
+    // the root's result is taken to be for the opponent of the player to
+    // move, who need not have moved into it; prove it again
+    results.set(ROOT, UNKNOWN);
+    moves[ROOT] = -1;
+    size.set(newSize);
+  }
+
+  private void collectCounts(Worker w) {
+    addNodeCount(w.nodes);
+    playouts += w.playouts;
+    w.nodes = 0;
+    w.playouts = 0;
+  }
+
+  /* Gets the child with the best upper confidence bound, or the first one
+   * not yet visited, skipping children proven lost. */
+  private int selectChild(int node) {
+    double logVisits = Math.log(Math.max(1, visits.get(node)));
+    int first = children.get(node);
+    int end = first + numChildren[node];
+    int best = -1;
+    double bestValue = 0;
+    for (int child = first; child < end; child++) {
+      if (results.get(child) == LOSS)
+        continue;
+      int n = visits.get(child);
+      if (n == 0)
+        return child;
+      double value = rewards.get(child) / (2.0 * n)
+          + exploration * Math.sqrt(logVisits / n);
+      if (best < 0 || value > bestValue) {
+        best = child;
+        bestValue = value;
+      }
+    }
+    return (best >= 0) ? best : first;
+  }
+
+  /* Proves the node from its children, if a child is won or all of them
+   * are proven, for the player who moved into it. */
+  private void prove(int node, int player, int currentPlayer) {
+    int best = LOSS; // for the player to move
+    boolean all = true;
+    int first = children.get(node);
+    int end = first + numChildren[node];
+    for (int child = first; child < end; child++) {
+      int result = results.get(child);
+      if (result == WIN) {
+        best = WIN;
+        break;
+      } else if (result == DRAW) {
+        best = DRAW;
+      } else if (result == UNKNOWN) {
+        all = false;
+      }
+    }
+    if (best != WIN && !all)
+      return;
+    if (player != currentPlayer && best != DRAW)
+      best = (best == WIN) ? LOSS : WIN;
+    results.set(node, best);
+  }
+
+  /* Gets the winner of a proven result of the player. */
+  private static int getWinner(int result, int player) {
+    if (result == WIN)
+      return player;
+    if (result == LOSS)
+      return -player;
+    return MnkGame.PLAYER_NONE;
+  }
+
+  /* Reserves space for nodes. Returns the first, or -1 if the tree is
+   * full. */
+  private int allocate(int nodes) {
+    while (true) {
+      int first = size.get();
+      if (first + nodes > maxNodes)
+        return -1;
+      if (size.compareAndSet(first, first + nodes))
+        return first;
+    }
+  }
+
+  private void initializeNode(int node, int move) {
+    children.set(node, UNEXPANDED);
+    numChildren[node] = 0;
+    moves[node] = move;
+    visits.set(node, 0);
+    rewards.set(node, 0);
+    results.set(node, UNKNOWN);
+  }
+
+  /* Creates a result from the tree: its most visited line, or proven
+   * line, and the score of its first move. */
+  private Result createResult() {
+    if (size.get() == 0 || children.get(ROOT) < 0)
+      return null;
+    int player = getGame().getCurrentPlayer();
+    List<Integer> line = new ArrayList<>();
+    int best = -1;
+    for (int node = ROOT; children.get(node) >= 0; ) {
+      node = selectLineChild(node);
+      if (best < 0)
+        best = node;
+      line.add(moves[node]);
+    }
+
+    int score;
+    int result = results.get(ROOT);
+    if (result == UNKNOWN) {
+      double rate = rewards.get(best) / (2.0 * Math.max(1, visits.get(best)));
+      score = (int) Math.round((2 * rate - 1) * SCORE_SCALE);
+    } else if (result == DRAW) {
+      score = 0;
+    } else {
+      // the root's result is for the opponent of the player to move
+      score = MnkGameEvaluator.MAX_SCORE - line.size();
+      if (result == WIN)
+        score = -score;
+    }
+    if (player != MnkGameEvaluator.PLAYER_MAX)
+      score = -score;
+    return new Result(score, line, result != UNKNOWN);
+  }
+
+  /* Gets the child the line continues with: a won child, else the most
+   * visited child not lost. */
+  private int selectLineChild(int node) {
+    int first = children.get(node);
+    int end = first + numChildren[node];
+    int best = -1;
+    for (int child = first; child < end; child++) {
+      int result = results.get(child);
+      if (result == WIN)
+        return child;
+      if (best < 0 || results.get(best) == LOSS
+          || (result != LOSS && visits.get(child) > visits.get(best)))
+        best = child;
+    }
+    return best;
+  }
+}
@@ -6,9 +6,6 @@ package search;
 import eval.MnkGameEvaluator;
 import game.MnkGame;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * @author Vance Zuo
  * @created Jan 5, 2015
@@ -16,37 +13,53 @@ import java.util.List;
  */
 public class MnkGameMinimaxSearcher extends MnkGameSearcher {
 
+  private boolean proof; // of the score last returned by minimax()
+
   public MnkGameMinimaxSearcher(MnkGame game, Class<? extends MnkGameEvaluator> eval) {
     super(game, eval);
   }
 
   @Override
   public Result search(int depth) {
+    int score = minimax(depth);
+    if (Thread.currentThread().isInterrupted())
+      return null;
+    return createResult(score, proof);
+  }
+
+
+  /* Searches the current position, returning its score; whether the score
+   * is proven is left in the proof field. */
+  private int minimax(int depth) {
     incrementNodeCount();
+    clearPv();
 
-    if (getGame().isGameOver())
-      return new Result(getEvaluator().evaluate(), null, true);
-    if (depth <= 0)
-      return new Result(getEvaluator().evaluate(), null, false);
+    if (getGame().isGameOver()) {
+      proof = true;
+      return getEvaluator().evaluate();
+    }
+    if (depth <= 0) {
+      proof = false;
+      return getEvaluator().evaluate();
+    }
 
     boolean maxi = getGame().getCurrentPlayer() == MnkGameEvaluator.PLAYER_MAX;
 
     int score = maxi ? MnkGameEvaluator.MIN_SCORE : MnkGameEvaluator.MAX_SCORE;
-    List<Integer> pv = new ArrayList<>(depth);
-    boolean proof = false;
-    for (int move : getGame().generatePseudolegalMoves()) {
+    boolean nodeProof = false;
+    int[] moves = getMoveBuffer();
+    int numMoves = generateMoves(moves);
+    for (int i = 0; i < numMoves; i++) {
+      int move = moves[i];
       getGame().doMove(move, false);
-      Result result = search(depth - 1);
+      int childScore = minimax(depth - 1);
       getGame().undoMove();
       if (Thread.currentThread().isInterrupted())
-        return null;
-      if (maxi ? result.getScore() > score : result.getScore() < score) {
-        score = result.getScore();
-        pv.clear();
-        pv.add(move);
-        if (result.getPrincipleVaration() != null)
-          pv.addAll(result.getPrincipleVaration());
-        proof = result.isProvenResult();
+        return 0;
+      if (maxi ? childScore > score : childScore < score) {
+        score = childScore;
+        nodeProof = proof;
+        updatePv(move);
       }
     }
 
@@ -56,6 +69,7 @@ public class MnkGameMinimaxSearcher extends MnkGameSearcher {
       score--;
     }
 
-    return new Result(score, pv, proof);
+    proof = nodeProof;
+    return score;
   }
 }
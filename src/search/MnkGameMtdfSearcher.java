@@ -0,0 +1,79 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import eval.MnkGameEvaluator;
+import game.MnkGame;
+
+/**
+ * The MnkGameMtdfSearcher class is an alpha-beta searcher using MTD(f).
+ * <p>
+ * Rather than one search with a wide window, MTD(f) converges on the score
+ * through a sequence of null-window "tests", each finding whether the score
+ * is at least some value. Tests are fail-soft, so each one returns a bound
+ * that the next one starts from; the transposition table keeps the nodes
+ * searched by earlier tests from being searched in full again. The first
+ * test is centered on the score of the previous iteration, which is usually
+ * close, so that few tests (passes) are needed.
+ */
+public class MnkGameMtdfSearcher extends MnkGameOrderedAbSearcher {
+
+  private int passes;
+
+
+  public MnkGameMtdfSearcher(MnkGame game,
+      Class<? extends MnkGameEvaluator> eval) {
+    super(game, eval);
+  }
+
+
+  @Override
+  public Result search(int depth) {
+    setRoot();
+    int score = getLastScore();
+    int lower = MnkGameEvaluator.MIN_SCORE - 1;
+    int upper = MnkGameEvaluator.MAX_SCORE + 1;
+    Result result = null;
+    passes = 0;
+    while (lower < upper) {
+      int gamma = Math.max(score, lower + 1);
+      score = search(depth, gamma - 1, gamma); // a test
+      passes++;
+      if (Thread.currentThread().isInterrupted())
+        return null;
+      boolean maxi = getGame().getCurrentPlayer() == MnkGameEvaluator.PLAYER_MAX;
+      if (score < gamma) {
+        upper = score;
+      } else {
+        lower = score;
+      }
+      // a test refuted by the side to move proves its move, so keep it
+      if (maxi == (score >= gamma))
+        result = createResult(score, isProvenScore());
+    }
+    if (result == null) // only if the tests were inconsistent
+      result = createResult(score, isProvenScore());
+    setLastScore(score);
+    return new Result(score, result.getPrincipleVaration(),
+        result.isProvenResult());
+  }
+
+  /**
+   * Gets the number of tests, i.e. null-window searches, the last search
+   * took to converge.
+   *
+   * @return    Number of passes of the last call to {@link #search(int)}
+   */
+  public int getPasses() {
+    return passes;
+  }
+
+
+  /* Tests are fail-soft, so that each bounds the score as tightly as it
+   * can. */
+  @Override
+  protected boolean isFailSoft() {
+    return true;
+  }
+}
@@ -5,10 +5,9 @@ package search;
 
 import eval.MnkGameEvaluator;
 import game.MnkGame;
+import game.MnkGameGeometry;
 
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 /**
  * @author Vance Zuo
@@ -17,19 +16,17 @@ import java.util.PriorityQueue;
  */
 public class MnkGameOrderedAbSearcher extends MnkGameAlphabetaSearcher {
 
-  private static class WeightedMove {
-    Integer move;
-    int score;
-
-    public WeightedMove(Integer move, int score) {
-      this.move = move;
-      this.score = score;
-    }
-  }
+  /** Number of killer moves kept per ply. */
+  public static final int KILLER_SLOTS = 2;
 
+  private static final int MAX_HISTORY = 1 << 20; // halve the table past it
+  private static final int HISTORY_WEIGHT = 1 << 8; // history per weight unit
 
   protected int[] weights;
+  private int[] weightedMoves; // moves included in the weights, per ply
   private int lastPly;
+  private int[][] killers; // per ply of the game, most recent first
+  private int[][] history; // cutoff depth squared, per side and square
 
 
   public MnkGameOrderedAbSearcher(MnkGame game,
@@ -47,48 +44,77 @@ public class MnkGameOrderedAbSearcher extends MnkGameAlphabetaSearcher {
         weights[i] = Math.min(Math.min(top, bottom), Math.min(left, right));
       }
     }
+    weightedMoves = new int[game.getSquares()];
     lastPly = 0;
+    killers = new int[game.getSquares() + 1][KILLER_SLOTS];
+    for (int[] slots : killers)
+      Arrays.fill(slots, -1);
+    history = new int[2][game.getSquares()];
   }
 
 
   @Override
-  protected Iterable<Integer> generateMoves() {
+  protected int generateMoves(int[] moves) {
     updateWeights();
+    return super.generateMoves(moves);
+  }
 
-    Comparator<WeightedMove> comp = new Comparator<WeightedMove>() {
-      @Override
-      public int compare(WeightedMove m1, WeightedMove m2) {
-        return m2.score - m1.score; // reverse
+  /* Selection sort step: killer moves first, then by history and weight. */
+  @Override
+  protected void selectMove(int[] moves, int i, int numMoves) {
+    int[] slots = killers[getGame().getElapsedPly()];
+    int[] counts = history[side()];
+    int best = i;
+    int bestKey = Integer.MIN_VALUE;
+    for (int j = i; j < numMoves; j++) {
+      int move = moves[j];
+      int key = counts[move] + weights[move] * HISTORY_WEIGHT;
+      for (int k = 0; k < KILLER_SLOTS; k++) {
+        if (move == slots[k])
+          key = Integer.MAX_VALUE - k;
+      }
+      if (key > bestKey) {
+        best = j;
+        bestKey = key;
       }
-    };
-    PriorityQueue<WeightedMove> moves = new PriorityQueue<>(numMoves(), comp);
-    for (Integer move : super.generateMoves())
-      moves.add(new WeightedMove(move, weights[move]));
-
-    return new Iterable<Integer>() {
-      @Override
-      public Iterator<Integer> iterator() {
-        return new Iterator<Integer>() {
-          @Override
-          public boolean hasNext() {
-            return !moves.isEmpty();
-          }
-
-          @Override
-          public Integer next() {
-            return moves.remove().move;
-          }
-        };
+    }
+    int move = moves[best];
+    moves[best] = moves[i];
+    moves[i] = move;
+  }
+
+  @Override
+  protected void recordCutoff(int move, int depth) {
+    int[] slots = killers[getGame().getElapsedPly()];
+    if (slots[0] != move) {
+      System.arraycopy(slots, 0, slots, 1, KILLER_SLOTS - 1);
+      slots[0] = move;
+    }
+    int[] counts = history[side()];
+    counts[move] += depth * depth;
+    if (counts[move] > MAX_HISTORY) {
+      for (int[] side : history) {
+        for (int j = 0; j < side.length; j++)
+          side[j] /= 2;
       }
-    };
+    }
   }
 
+  /* Brings the weights up to date with the game's moves. Moves are undone
+   * back to the first ply where the game differs from the weights, e.g. a
+   * sibling move, then the game's moves are applied from there. */
   protected void updateWeights() {
     int currentPly = getGame().getElapsedPly();
-    while (lastPly > currentPly)
-      updateMove(getGame().getHistory(--lastPly), true);
-    while (lastPly < currentPly)
-      updateMove(getGame().getHistory(lastPly++), false);
+    int common = 0;
+    while (common < lastPly && common < currentPly
+        && weightedMoves[common] == getGame().getHistory(common))
+      common++;
+    while (lastPly > common)
+      updateMove(weightedMoves[--lastPly], true);
+    while (lastPly < currentPly) {
+      weightedMoves[lastPly] = getGame().getHistory(lastPly);
+      updateMove(weightedMoves[lastPly++], false);
+    }
     /* for (int i = 0; i < weights.length; i++) {
       if (i % getGame().getCols() == 0)
         System.out.println();
@@ -97,20 +123,17 @@ public class MnkGameOrderedAbSearcher extends MnkGameAlphabetaSearcher {
   }
 
   protected void updateMove(int square, boolean undo) {
-    int m = getGame().getCols();
-    int n = getGame().getRows();
+    MnkGameGeometry geometry = getGame().getGeometry();
     int k = getGame().getK();
-    int row = getGame().getRow(square);
-    int col = getGame().getCol(square);
-    int[] dirs = {-1, 1, -m, m, -m - 1, m + 1, -m + 1, m - 1};
-    int[] lens = {col, m - 1 - col, row, n - 1 - row, Math.min(col, row),
-                  Math.min(m - 1 - col, n - 1 - row),
-                  Math.min(m - 1 - col, row), Math.min(col, n - 1 - row)};
-    for (int i = 0; i < dirs.length; i++) {
-      for (int j = 1; j < Math.min(k, lens[i]); j++) {
-        weights[square + dirs[i] * j] += (undo ? -1 : 1) * (k - j);
-      }
+    for (int i = 0; i < geometry.getNeighbors(square); i++) {
+      int weight = k - geometry.getNeighborDistance(square, i);
+      weights[geometry.getNeighbor(square, i)] += undo ? -weight : weight;
     }
   }
 
+  /* Gets the history table index of the side to move. */
+  private int side() {
+    return (getGame().getCurrentPlayer() == MnkGame.PLAYER_1) ? 0 : 1;
+  }
+
 }
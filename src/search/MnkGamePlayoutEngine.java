@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import game.MnkGame;
+
+import java.util.SplittableRandom;
+
+/**
+ * The MnkGamePlayoutEngine class plays random games to the end from a
+ * game's position, as fast as possible, for Monte Carlo searches.
+ * <p>
+ * Playouts do not change the game. The engine copies its position into a
+ * scratch board and a list of the empty squares (of the open columns, in
+ * drop games), then repeatedly picks a random entry of the list, plays it,
+ * and removes it by swapping in the last entry. Only the lines through the
+ * square just played are checked for a win. The scratch board has a border
+ * of off-board squares, so the lines are walked without bounds checks. The
+ * copy is kept until the game's position changes, so no playout allocates
+ * or walks the game's move generators.
+ * <p>
+ * Each engine has its own {@link SplittableRandom}, so engines of different
+ * threads share no state, unlike a shared {@link java.util.Random}, whose
+ * seed is updated atomically by every call. An engine itself is not
+ * thread-safe.
+ */
+public class MnkGamePlayoutEngine {
+
+  private static final int OFF_BOARD = 2; // neither player's piece
+
+
+  private final MnkGame game;
+  private final int m, n, k, p;
+  private final boolean drop;
+  private final int width; // of a row of the scratch board, with border
+  private final int[] steps; // between squares of a line, per direction
+
+  // position of the game, as of the last load
+  private final int[] startBoard; // piece per scratch square
+  private final int[] startOpen; // empty scratch squares, or open columns
+  private final int[] startHeights; // next row per column, in drop games
+  private int startOpenSize;
+  private long startHash;
+  private int startPly = -1;
+
+  // position of the current playout
+  private final int[] board;
+  private final int[] open;
+  private final int[] heights;
+
+  private SplittableRandom random;
+  private long playouts;
+  private long moves;
+
+
+  /**
+   * Constructs an engine for playouts from a game's positions.
+   *
+   * @param game    Game to play out; may change between playouts
+   */
+  public MnkGamePlayoutEngine(MnkGame game) {
+    this.game = game;
+    m = game.getCols();
+    n = game.getRows();
+    k = game.getK();
+    p = game.getTurnMoves();
+    drop = game.hasDropMoves();
+    width = m + 1; // one off-board column between rows
+    steps = new int[] {1, width, width + 1, width - 1};
+    startBoard = new int[(n + 2) * width + 1];
+    for (int i = 0; i < startBoard.length; i++)
+      startBoard[i] = OFF_BOARD;
+    startOpen = new int[drop ? m : m * n];
+    startHeights = new int[m];
+    board = new int[startBoard.length];
+    open = new int[startOpen.length];
+    heights = new int[m];
+    random = new SplittableRandom();
+  }
+
+
+  /**
+   * Plays random moves from the game's position to the end of the game.
+   * The game itself is not changed.
+   *
+   * @return    Winner of the playout, or {@link MnkGame#PLAYER_NONE} for a
+   *            draw
+   */
+  public int playout() {
+    if (game.isGameOver())
+      return game.getWinner();
+    load();
+    System.arraycopy(startBoard, 0, board, 0, board.length);
+    System.arraycopy(startOpen, 0, open, 0, startOpenSize);
+    if (drop)
+      System.arraycopy(startHeights, 0, heights, 0, m);
+
+    int size = startOpenSize;
+    int turn = game.getCurrentPlayer();
+    int remaining = game.getTurnRemainingMoves();
+    int winner = MnkGame.PLAYER_NONE;
+    while (size > 0) {
+      int i = random.nextInt(size);
+      int square;
+      if (drop) {
+        int col = open[i];
+        square = toScratch(heights[col]++, col);
+        if (heights[col] == n)
+          open[i] = open[--size];
+      } else {
+        square = open[i];
+        open[i] = open[--size];
+      }
+      board[square] = turn;
+      moves++;
+      if (isWin(square, turn)) {
+        winner = turn;
+        break;
+      }
+      if (--remaining == 0) {
+        turn = -turn;
+        remaining = p;
+      }
+    }
+    playouts++;
+    return winner;
+  }
+
+  /**
+   * Seeds the random number generator, e.g. to repeat playouts.
+   *
+   * @param seed    Seed of the generator
+   */
+  public void setSeed(long seed) {
+    random = new SplittableRandom(seed);
+  }
+
+  /**
+   * Gets the number of playouts the engine has played.
+   *
+   * @return    Number of playouts
+   */
+  public long getPlayoutCount() {
+    return playouts;
+  }
+
+  /**
+   * Gets the number of moves the engine has played, over all playouts.
+   *
+   * @return    Number of moves
+   */
+  public long getMoveCount() {
+    return moves;
+  }
+
+
+  /* Copies the game's position, unless it is the one last copied. */
+  private void load() {
+    if (game.getElapsedPly() == startPly && game.getHash() == startHash)
+      return;
+    startPly = game.getElapsedPly();
+    startHash = game.getHash();
+    startOpenSize = 0;
+    for (int row = 0; row < n; row++) {
+      for (int col = 0; col < m; col++) {
+        int piece = game.getPiece(game.getSquare(row, col));
+        startBoard[toScratch(row, col)] = piece;
+        if (!drop && piece == MnkGame.PLAYER_NONE)
+          startOpen[startOpenSize++] = toScratch(row, col);
+      }
+    }
+    if (drop) {
+      for (int col = 0; col < m; col++) {
+        int row = 0;
+        while (row < n && startBoard[toScratch(row, col)] != MnkGame.PLAYER_NONE)
+          row++;
+        startHeights[col] = row;
+        if (row < n)
+          startOpen[startOpenSize++] = col;
+      }
+    }
+  }
+
+  /* Gets the scratch square of a row and column of the game's board. */
+  private int toScratch(int row, int col) {
+    return (row + 1) * width + col + 1;
+  }
+
+  /* Checks whether the piece just played at the scratch square completes
+   * a line of k for the player. */
+  private boolean isWin(int square, int player) {
+    for (int step : steps) {
+      int count = 1;
+      for (int s = square + step; board[s] == player; s += step)
+        count++;
+      for (int s = square - step; board[s] == player; s -= step)
+        count++;
+      if (count >= k)
+        return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import game.MnkGame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The MnkGamePnsSolver class finds the game-theoretic value of a position
+ * with proof-number search.
+ * <p>
+ * Proof-number search grows a best-first AND/OR tree towards the position
+ * that would most cheaply prove (or disprove) that the attacker can force
+ * a win.
+ * <p>
+ * Nodes are kept in parallel int arrays, with the children of a node
+ * stored next to each other, so a node takes five ints and no objects. The
+ * arrays grow as needed up to the memory size, at which the search gives
+ * up; as the tree is kept whole, this limits the positions it can solve.
+ */
+public class MnkGamePnsSolver extends MnkGameSolver {
+
+  private static final int NODE_BYTES = 5 * 4;
+  private static final int INFINITY = Integer.MAX_VALUE / 2;
+  private static final int INITIAL_NODES = 1 << 12;
+  private static final int DRAWN_LINE = 1 << 20;
+
+
+  private final MnkGame game;
+  private int maxNodes;
+
+  private int[] proof; // proof number, per node
+  private int[] disproof; // disproof number, per node
+  private int[] children; // first child, per node; -1 if not expanded
+  private int[] numChildren;
+  private int[] moves; // move leading to the node
+  private int size;
+  private int attacker; // of the last search
+  private int[] path; // nodes from the root to the one being expanded
+  private int[] moveBuffer;
+  private int lineRating; // of the child last selected by selectLineChild()
+
+
+  public MnkGamePnsSolver(MnkGame game) {
+    super(game);
+    this.game = game;
+    path = new int[game.getSquares() + 1];
+    moveBuffer = new int[game.getSquares()];
+  }
+
+
+  @Override
+  public MnkGameSearcher.Result solve() {
+    maxNodes = (int) Math.min(Integer.MAX_VALUE - 8,
+        getMemorySize() * (1L << 20) / NODE_BYTES);
+    int player = game.getCurrentPlayer();
+    if (game.isGameOver())
+      return createResult(game.getWinner(), new ArrayList<Integer>());
+    if (!search(player))
+      return null;
+    if (proof[0] == 0)
+      return createResult(player, getLine(true));
+    if (!search(-player))
+      return null;
+    if (proof[0] == 0)
+      return createResult(-player, getLine(true));
+    return createResult(MnkGame.PLAYER_NONE, getLine(false));
+  }
+
+
+  /* Searches until the root is proven or disproven to be a win for the
+   * attacker. Returns false if the search gave up first. */
+  private boolean search(int attacker) {
+    this.attacker = attacker;
+    size = 0;
+    ensureCapacity(1);
+    int root = newNode(-1);
+    proof[root] = 1;
+    disproof[root] = 1;
+    while (proof[root] != 0 && disproof[root] != 0) {
+      if (Thread.currentThread().isInterrupted())
+        return false;
+      int depth = 0;
+      int node = root;
+      path[0] = root;
+      while (children[node] >= 0) {
+        node = selectChild(node, game.getCurrentPlayer() == attacker);
+        game.doMove(moves[node], false);
+        path[++depth] = node;
+      }
+      if (!expand(node, attacker)) {
+        while (depth-- > 0)
+          game.undoMove(false);
+        return false;
+      }
+      update(node, game.getCurrentPlayer() == attacker);
+      while (depth > 0) {
+        game.undoMove(false);
+        node = path[--depth];
+        update(node, game.getCurrentPlayer() == attacker);
+      }
+    }
+    return true;
+  }
+
+  /* Gets the child of an OR (attacker to move) node with the least proof
+   * number, or of an AND node with the least disproof number. */
+  private int selectChild(int node, boolean or) {
+    int[] numbers = or ? proof : disproof;
+    int best = children[node];
+    int end = children[node] + numChildren[node];
+    for (int child = best + 1; child < end; child++) {
+      if (numbers[child] < numbers[best])
+        best = child;
+    }
+    return best;
+  }
+
+  /* Creates the children of a leaf, scoring those that end the game.
+   * Returns false if the node limit would be exceeded. */
+  private boolean expand(int node, int attacker) {
+    int numMoves = game.generateInOutPseudolegalMoves(moveBuffer);
+    if (size + numMoves > maxNodes)
+      return false;
+    ensureCapacity(size + numMoves);
+    children[node] = size;
+    numChildren[node] = numMoves;
+    for (int i = 0; i < numMoves; i++) {
+      int child = newNode(moveBuffer[i]);
+      game.doMove(moveBuffer[i], false);
+      if (!game.isGameOver()) {
+        proof[child] = 1;
+        disproof[child] = 1;
+      } else if (game.getWinner() == attacker) {
+        proof[child] = 0;
+        disproof[child] = INFINITY;
+      } else {
+        proof[child] = INFINITY;
+        disproof[child] = 0;
+      }
+      game.undoMove(false);
+    }
+    return true;
+  }
+
+  /* Recomputes the numbers of an expanded node from its children. */
+  private void update(int node, boolean or) {
+    int min = INFINITY;
+    int sum = 0;
+    int[] minNumbers = or ? proof : disproof;
+    int[] sumNumbers = or ? disproof : proof;
+    int end = children[node] + numChildren[node];
+    for (int child = children[node]; child < end; child++) {
+      min = Math.min(min, minNumbers[child]);
+      sum = Math.min(sum + sumNumbers[child], INFINITY);
+    }
+    minNumbers[node] = min;
+    sumNumbers[node] = sum;
+  }
+
+  /* Gets the moves of the last search's proof (or disproof) tree from the
+   * root. A winning line is the shortest win against the longest defense;
+   * a drawn line is the longest that does not end in a win, e.g. by a
+   * blunder that the disproof tree also covers. */
+  private List<Integer> getLine(boolean proven) {
+    List<Integer> line = new ArrayList<>();
+    int node = 0;
+    while (children[node] >= 0) {
+      node = selectLineChild(node, proven);
+      line.add(moves[node]);
+      game.doMove(moves[node], false);
+    }
+    for (int i = 0; i < line.size(); i++)
+      game.undoMove(false);
+    return line;
+  }
+
+  /* Gets the child of an expanded node that the line continues with,
+   * leaving the rating of its line in the lineRating field. */
+  private int selectLineChild(int node, boolean proven) {
+    int[] numbers = proven ? proof : disproof;
+    boolean shortest = proven && game.getCurrentPlayer() == attacker;
+    int best = -1;
+    int bestRating = 0;
+    int end = children[node] + numChildren[node];
+    for (int child = children[node]; child < end; child++) {
+      if (numbers[child] != 0)
+        continue;
+      game.doMove(moves[child], false);
+      int rating = rateLine(child, proven);
+      game.undoMove(false);
+      if (best < 0 || (shortest ? rating < bestRating : rating > bestRating)) {
+        best = child;
+        bestRating = rating;
+      }
+    }
+    lineRating = bestRating;
+    return best;
+  }
+
+  /* Rates the line from the node, i.e. its length, plus DRAWN_LINE for a
+   * drawn line that does not end in a win. */
+  private int rateLine(int node, boolean proven) {
+    if (children[node] < 0)
+      return (!proven && !game.hasWinner()) ? DRAWN_LINE : 0;
+    selectLineChild(node, proven);
+    return lineRating + 1;
+  }
+
+  private int newNode(int move) {
+    int node = size++;
+    children[node] = -1;
+    numChildren[node] = 0;
+    moves[node] = move;
+    incrementNodeCount();
+    return node;
+  }
+
+  private void ensureCapacity(int nodes) {
+    if (proof != null && proof.length >= nodes)
+      return;
+    int capacity = (proof == null) ? INITIAL_NODES : proof.length;
+    while (capacity < nodes)
+      capacity *= 2;
+    capacity = Math.min(capacity, Math.max(maxNodes, nodes));
+    if (proof == null) {
+      proof = new int[capacity];
+      disproof = new int[capacity];
+      children = new int[capacity];
+      numChildren = new int[capacity];
+      moves = new int[capacity];
+    } else {
+      proof = Arrays.copyOf(proof, capacity);
+      disproof = Arrays.copyOf(disproof, capacity);
+      children = Arrays.copyOf(children, capacity);
+      numChildren = Arrays.copyOf(numChildren, capacity);
+      moves = Arrays.copyOf(moves, capacity);
+    }
+  }
+}
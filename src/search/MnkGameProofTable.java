@@ -0,0 +1,171 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+/**
+ * The MnkGameProofTable class stores the proof and disproof numbers of
+ * positions for solvers, by position hash, in a fixed amount of memory.
+ * <p>
+ * Each entry also records the work, i.e. the number of nodes searched, that
+ * went into its numbers. Entries are grouped in buckets of four; when a
+ * bucket is full, the entry with the least work is replaced. When the table
+ * as a whole fills up, it is garbage collected: entries of small subtrees,
+ * which are cheap to search again, are removed until half the table is free,
+ * keeping the results of the largest searches however long a solve runs.
+ */
+public class MnkGameProofTable {
+
+  private static final int BUCKET_SLOTS = 4;
+  private static final int SLOT_BYTES = 8 + 4 + 4 + 4;
+  private static final double COLLECT_FILL = 0.9; // collect when this full
+  private static final double COLLECT_TARGET = 0.5; // until this full
+
+
+  private final long[] keys; // 0 if the slot is empty
+  private final int[] proofs;
+  private final int[] disproofs;
+  private final int[] works;
+  private final int mask; // number of buckets - 1
+  private int size;
+  private int collections;
+
+
+  /**
+   * Constructs an empty table of (at most) the specified size.
+   *
+   * @param megabytes   Size of the table in megabytes
+   */
+  public MnkGameProofTable(int megabytes) {
+    if (megabytes <= 0)
+      throw new IllegalArgumentException("Non-positive size: " + megabytes);
+    long buckets = Long.highestOneBit(
+        megabytes * (1L << 20) / (SLOT_BYTES * BUCKET_SLOTS));
+    buckets = Math.min(buckets, 1 << 28); // array length limit
+    int slots = (int) buckets * BUCKET_SLOTS;
+    keys = new long[slots];
+    proofs = new int[slots];
+    disproofs = new int[slots];
+    works = new int[slots];
+    mask = (int) buckets - 1;
+  }
+
+
+  /**
+   * Looks up the entry for a position.
+   *
+   * @param hash    Hash of the position
+   * @return        Slot of the entry, for {@link #getProof(int)} and the
+   *                other accessors, or -1 if there is none
+   */
+  public int probe(long hash) {
+    long key = key(hash);
+    int i = index(hash);
+    for (int j = i; j < i + BUCKET_SLOTS; j++) {
+      if (keys[j] == key)
+        return j;
+    }
+    return -1;
+  }
+
+  public int getProof(int slot) {
+    return proofs[slot];
+  }
+
+  public int getDisproof(int slot) {
+    return disproofs[slot];
+  }
+
+  public int getWork(int slot) {
+    return works[slot];
+  }
+
+  /**
+   * Stores the numbers of a position, replacing its entry if it has one.
+   *
+   * @param hash      Hash of the position
+   * @param proof     Proof number of the position
+   * @param disproof  Disproof number of the position
+   * @param work      Nodes searched to get the numbers
+   */
+  public void store(long hash, int proof, int disproof, long work) {
+    long key = key(hash);
+    int i = index(hash);
+    int slot = -1;
+    for (int j = i; j < i + BUCKET_SLOTS; j++) {
+      if (keys[j] == key) {
+        slot = j;
+        break;
+      }
+      if (slot < 0 || (keys[slot] != 0 && (keys[j] == 0
+          || works[j] < works[slot])))
+        slot = j;
+    }
+    if (keys[slot] == 0)
+      size++;
+    keys[slot] = key;
+    proofs[slot] = proof;
+    disproofs[slot] = disproof;
+    works[slot] = (int) Math.min(work, Integer.MAX_VALUE);
+    if (size >= keys.length * COLLECT_FILL)
+      collectGarbage();
+  }
+
+  /**
+   * Removes all entries and resets the statistics.
+   */
+  public void clear() {
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = 0;
+    size = 0;
+    collections = 0;
+  }
+
+  /**
+   * Gets the number of entries the table can hold.
+   *
+   * @return    Capacity of the table
+   */
+  public int getCapacity() {
+    return keys.length;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the number of garbage collections since the table was cleared.
+   *
+   * @return    Number of collections
+   */
+  public int getCollections() {
+    return collections;
+  }
+
+
+  /* Removes the entries of the least work, doubling the work threshold
+   * until enough of the table is free. */
+  private void collectGarbage() {
+    collections++;
+    for (long threshold = 1; size > keys.length * COLLECT_TARGET;
+        threshold *= 2) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0 && works[i] < threshold) {
+          keys[i] = 0;
+          size--;
+        }
+      }
+    }
+  }
+
+  /* Gets the key an entry is stored under, which is never 0. */
+  private static long key(long hash) {
+    return (hash == 0) ? 1 : hash;
+  }
+
+  /* Gets the index of the first slot of the position's bucket. */
+  private int index(long hash) {
+    return ((int) (hash ^ (hash >>> 32)) & mask) * BUCKET_SLOTS;
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import eval.MnkGameEvaluator;
+import game.MnkGame;
+
+/**
+ * The MnkGamePvsSearcher class is an alpha-beta searcher using Principal
+ * Variation Search (also known as NegaScout).
+ * <p>
+ * The first move of each node, i.e. the hash or previous principal
+ * variation move, or else the best by the ordering of
+ * {@link MnkGameOrderedAbSearcher}, is searched with the node's full window.
+ * The other moves are expected to be worse, so they are only searched with
+ * a null window, which proves that cheaply; a move that turns out better is
+ * searched again with the full window to get its exact score.
+ */
+public class MnkGamePvsSearcher extends MnkGameOrderedAbSearcher {
+
+  public MnkGamePvsSearcher(MnkGame game,
+      Class<? extends MnkGameEvaluator> eval) {
+    super(game, eval);
+  }
+
+
+  @Override
+  protected int searchChild(int i, int depth, int alpha, int beta,
+      boolean maxi) {
+    if (i == 0 || beta - alpha <= 1)
+      return search(depth, alpha, beta);
+    int score = maxi ? search(depth, alpha, alpha + 1)
+                     : search(depth, beta - 1, beta);
+    if (score > alpha && score < beta && !Thread.currentThread().isInterrupted())
+      score = search(depth, alpha, beta);
+    return score;
+  }
+}
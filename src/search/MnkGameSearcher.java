@@ -4,6 +4,7 @@
 package search;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -32,6 +33,35 @@ public abstract class MnkGameSearcher {
     }
   }
 
+  /* Runs an iterative deepening search, returning its deepest result. */
+  public static class IterativeTask implements Callable<Result> {
+    private final MnkGameSearcher searcher;
+    private final int startDepth;
+    private final int maxDepth;
+    private final IterationListener listener;
+
+    public IterativeTask(MnkGameSearcher searcher, int startDepth, int maxDepth,
+        IterationListener listener) {
+      this.searcher = searcher;
+      this.startDepth = startDepth;
+      this.maxDepth = maxDepth;
+      this.listener = listener;
+    }
+
+    @Override
+    public Result call() throws Exception {
+      return searcher.searchIteratively(startDepth, maxDepth, listener);
+    }
+  }
+
+  /**
+   * Receives the result of each completed iteration of an iterative
+   * deepening search, on the searching thread.
+   */
+  public interface IterationListener {
+    void iterationFinished(int depth, Result result);
+  }
+
   public static class Result {
     private final int score;
     private final List<Integer> pv;
@@ -70,14 +100,45 @@ public abstract class MnkGameSearcher {
 
 
   private MnkGame game;
+  private Class<? extends MnkGameEvaluator> evalClass;
   private MnkGameEvaluator eval;
   private long nodes;
+  private int[][] moveBuffers; // per ply of the game, allocated on first use
+  private int[][] pv; // triangular table of principal variations, per ply
+  private int[] pvLength;
+  private int[] lastPv; // of the previous iteration, from the root
+  private int lastPvLength;
+  private boolean[] onLastPv; // per ply from the root
+  private int rootPly;
 
 
   public MnkGameSearcher(MnkGame game, Class<? extends MnkGameEvaluator> eval) {
     this.game = game;
+    this.evalClass = eval;
+    this.eval = createEvaluator(game);
+    moveBuffers = new int[game.getSquares() + 1][];
+    pv = new int[game.getSquares() + 1][];
+    for (int i = 0; i < pv.length; i++)
+      pv[i] = new int[game.getSquares() - i];
+    pvLength = new int[game.getSquares() + 1];
+    lastPv = new int[game.getSquares()];
+    onLastPv = new boolean[game.getSquares() + 1];
+  }
+
+
+  protected final void incrementNodeCount() {
+    nodes++;
+  }
+
+  protected final void addNodeCount(long count) {
+    nodes += count;
+  }
+
+  /* Creates an evaluator of this searcher's kind for another game, e.g. a
+   * copy of the game for a parallel search thread. */
+  protected final MnkGameEvaluator createEvaluator(MnkGame game) {
     try {
-      this.eval = eval.getConstructor(MnkGame.class).newInstance(game);
+      return evalClass.getConstructor(MnkGame.class).newInstance(game);
     } catch (NoSuchMethodException | SecurityException | InstantiationException
         | IllegalAccessException | IllegalArgumentException
         | InvocationTargetException e) {
@@ -85,19 +146,100 @@ public abstract class MnkGameSearcher {
     }
   }
 
+  protected int generateMoves(int[] moves) {
+    return getGame().generatePseudolegalMoves(moves);
+  }
 
-  protected final void incrementNodeCount() {
-    nodes++;
+  /* Gets a move buffer private to the game's current ply, so that searches
+   * can generate moves at every node without allocating. */
+  protected final int[] getMoveBuffer() {
+    int ply = getGame().getElapsedPly();
+    if (moveBuffers[ply] == null)
+      moveBuffers[ply] = new int[getGame().getSquares()];
+    return moveBuffers[ply];
+  }
+
+  /* Makes the game's current position the root of the search, from which
+   * the principal variations count their plies. */
+  protected final void setRoot() {
+    rootPly = getGame().getElapsedPly();
+  }
+
+  /* Checks if the game's current position is the root of the search. */
+  protected final boolean isRoot() {
+    return getGame().getElapsedPly() == rootPly;
+  }
+
+  /* Empties the principal variation of the game's current ply, and notes
+   * whether the node is on the previous iteration's principal variation.
+   * Searches call this on entering a node, before any of its children. */
+  protected final void clearPv() {
+    int ply = getGame().getElapsedPly();
+    pvLength[ply] = 0;
+    if (lastPvLength == 0)
+      return;
+    int i = ply - rootPly;
+    onLastPv[i] = i == 0 || (onLastPv[i - 1] && i - 1 < lastPvLength
+        && getGame().getHistory(ply - 1) == lastPv[i - 1]);
+  }
+
+  /* Gets the move the previous iteration's principal variation plays from
+   * the current node, or -1 if the node is not on that variation. */
+  protected final int getLastPvMove() {
+    if (lastPvLength == 0)
+      return -1;
+    int i = getGame().getElapsedPly() - rootPly;
+    return (onLastPv[i] && i < lastPvLength) ? lastPv[i] : -1;
+  }
+
+  /* Sets the principal variation of the game's current ply to the move,
+   * followed by the principal variation left by the move's child node. */
+  protected final void updatePv(int move) {
+    int ply = getGame().getElapsedPly();
+    int length = pvLength[ply + 1];
+    pv[ply][0] = move;
+    System.arraycopy(pv[ply + 1], 0, pv[ply], 1, length);
+    pvLength[ply] = length + 1;
   }
 
-  protected Iterable<Integer> generateMoves() {
-    return getGame().generatePseudolegalMoves();
+  /* Creates a result with the principal variation of the game's current
+   * ply, i.e. of the root when a search returns. */
+  protected final Result createResult(int score, boolean proof) {
+    int ply = getGame().getElapsedPly();
+    List<Integer> line = new ArrayList<>(pvLength[ply]);
+    for (int i = 0; i < pvLength[ply]; i++)
+      line.add(pv[ply][i]);
+    return new Result(score, line, proof);
   }
 
   protected int numMoves() {
     return getGame().getPseudolegalMoves();
   }
 
+  /* Gets the move the player to move is forced to make: a square that wins
+   * at once, or else, with the last piece of the player's turn, the square
+   * that stops the opponent winning with the next one. Any other move is no
+   * better, so searching this one alone is enough. Returns -1 if neither
+   * exists. Both take only a look at the game's winning squares. */
+  protected static int getForcedMove(MnkGame game) {
+    int player = game.getCurrentPlayer();
+    int move = getLegalWinningSquare(game, player);
+    if (move >= 0 || game.getTurnRemainingMoves() > 1)
+      return move;
+    return getLegalWinningSquare(game, -player);
+  }
+
+  /* Gets a square where the player would complete k-in-a-row that can be
+   * played now, or -1 if none. */
+  private static int getLegalWinningSquare(MnkGame game, int player) {
+    for (int i = 0; i < game.getWinningSquares(player); i++) {
+      int square = game.getWinningSquare(player, i);
+      if (game.canDoMove(square))
+        return square;
+    }
+    return -1;
+  }
+
   public final MnkGame getGame() {
     return game;
   }
@@ -110,5 +252,55 @@ public abstract class MnkGameSearcher {
     return nodes;
   }
 
+  /**
+   * Stops the threads the searcher owns, if any, e.g. before it is
+   * replaced. The searcher should not be used afterwards. Does nothing by
+   * default.
+   */
+  public void shutdown() {
+  }
+
+  /**
+   * Searches to the specified depth.
+   *
+   * @param depth   Number of plies to search
+   * @return        Result of the search, or null if it was interrupted
+   */
   public abstract Result search(int depth);
+
+  /**
+   * Searches to successively greater depths, until the maximum depth, a
+   * proven result, or an interrupt. Each iteration searches the previous
+   * one's principal variation first; searchers with a transposition table
+   * or move ordering statistics also keep them between iterations.
+   *
+   * @param startDepth  Depth of the first iteration
+   * @param maxDepth    Depth of the last iteration
+   * @param listener    Receives the result of every iteration; may be null
+   * @return            Result of the deepest completed iteration, or null
+   *                    if none completed
+   */
+  public Result searchIteratively(int startDepth, int maxDepth,
+      IterationListener listener) {
+    setRoot();
+    Result best = null;
+    try {
+      for (int i = startDepth; i <= maxDepth; i++) {
+        Result result = search(i);
+        if (result == null)
+          break;
+        best = result;
+        if (listener != null)
+          listener.iterationFinished(i, result);
+        if (result.isProvenResult())
+          break;
+        lastPvLength = result.getPrincipleVarationLength();
+        for (int j = 0; j < lastPvLength; j++)
+          lastPv[j] = result.getPrincipleVaration().get(j);
+      }
+    } finally {
+      lastPvLength = 0;
+    }
+    return best;
+  }
 }
\ No newline at end of file
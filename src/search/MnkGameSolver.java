@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import eval.MnkGameEvaluator;
+import game.MnkGame;
+
+import java.util.List;
+
+/**
+ * The MnkGameSolver class is the base of solvers, which find the
+ * game-theoretic value of a position (win, draw or loss) rather than a
+ * heuristic score to some depth.
+ * <p>
+ * Solvers try to prove a win for one player, the attacker, at a time: to
+ * tell wins, draws and losses apart, a win for the player to move is tried
+ * first, and if that is disproven, a win for the opponent, whose disproof
+ * means a draw.
+ */
+public abstract class MnkGameSolver {
+
+  /** Default memory a solver may use for its tree or table, in megabytes. */
+  public static final int DEFAULT_MEMORY_SIZE = 64;
+
+
+  private MnkGame game;
+  private int memory;
+  private long nodes;
+
+
+  public MnkGameSolver(MnkGame game) {
+    this.game = game;
+    this.memory = DEFAULT_MEMORY_SIZE;
+  }
+
+
+  /**
+   * Sets the memory the solver may use for its tree or table. Searches
+   * give up, or discard what they have searched, rather than use more.
+   *
+   * @param megabytes   Memory size in megabytes
+   */
+  public void setMemorySize(int megabytes) {
+    if (megabytes <= 0)
+      throw new IllegalArgumentException("Non-positive size: " + megabytes);
+    memory = megabytes;
+  }
+
+  public int getMemorySize() {
+    return memory;
+  }
+
+  public final MnkGame getGame() {
+    return game;
+  }
+
+  /**
+   * Gets the number of nodes searched by all solves so far.
+   *
+   * @return    Number of nodes
+   */
+  public final long getNodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Solves the game from its current position.
+   * <p>
+   * The score of the result is a win score for the winner, less the length
+   * of the line (see {@link MnkGameEvaluator}), or zero for a draw. The line
+   * is a principal variation of the proof: the winner's winning moves
+   * against one of the loser's defenses, or for a draw, moves by which
+   * neither player loses.
+   *
+   * @return    Proven result, or null if the solver gave up (e.g. for lack
+   *            of memory) or the thread was interrupted first
+   */
+  public abstract MnkGameSearcher.Result solve();
+
+
+  protected final void incrementNodeCount() {
+    nodes++;
+  }
+
+  protected final MnkGameSearcher.Result createResult(int winner,
+      List<Integer> line) {
+    return createResult(winner, line, line.size());
+  }
+
+  /* Creates a result whose line may be cut short of the win, which is the
+   * number of plies away. */
+  protected final MnkGameSearcher.Result createResult(int winner,
+      List<Integer> line, int plies) {
+    int score = 0;
+    if (winner != MnkGame.PLAYER_NONE) {
+      score = MnkGameEvaluator.MAX_SCORE - plies;
+      if (winner != MnkGameEvaluator.PLAYER_MAX)
+        score = -score;
+    }
+    return new MnkGameSearcher.Result(score, line, true);
+  }
+}
@@ -0,0 +1,506 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import game.MnkGame;
+import game.MnkGameGeometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MnkGameThreatSolver class finds forced wins for the player to move
+ * with threat-space search.
+ * <p>
+ * Only threats are searched: the attacker plays moves that make a
+ * <i>four</i>, i.e. a line one piece short of a win, or a <i>three</i>, a
+ * line two pieces short, and the defender plays only the moves that answer
+ * them. A four has a single answer, the square that would complete it. A
+ * three is only searched as a threat if the attacker could follow it with a
+ * double four, and is answered by the squares in the lines of all of those
+ * double fours and by the defender's own fours; any other answer leaves a
+ * double four, so wins found are proven. The branching factor is small
+ * enough that wins tens of ply deep are found quickly, even on boards whose
+ * full-width search would not see them.
+ * <p>
+ * Searches are iteratively deepened on the number of threes, fours being
+ * cheap, and stop after a number of nodes; limiting the threes to none gives
+ * a search of victory by continuous fours (VCF), fast enough to be called
+ * within other searches. A transposition table, if set, keeps the results of
+ * positions across searches; lines are then cut short where the rest of a
+ * win was found in the table. Only games with one piece per
+ * turn and without the drop rule are supported (e.g. Gomoku); solving others
+ * gives up at once. As only wins of the player to move are found, a null
+ * result does not mean the position is not won.
+ */
+public class MnkGameThreatSolver extends MnkGameSolver {
+
+  /** Default number of nodes after which a search gives up. */
+  public static final int DEFAULT_MAX_NODES = 1 << 16;
+
+
+  private final MnkGame game;
+  private final int k;
+  private final MnkGameGeometry geometry; // windows of k squares
+  private final int[] windows; // found by the last collectWindows
+  private final int[] windowMarks; // windows already looked at, by stamp
+  private int windowStamp;
+
+  private final int[][] moveBuffers; // per ply of the search
+  private final int[][] pv; // triangular table of lines, per ply
+  private final int[] pvLength;
+  private final int[] plies; // to the win, per ply of the search
+  private final int[] marks; // squares already generated, by stamp
+  private final int[] hits; // double fours each square answers
+  private final int[] hitMarks; // last double four counted, per square
+  private final int[] hitSquares; // squares with hits
+  private int stamp;
+  private int hitStamp;
+
+  private MnkGameTranspositionTable table;
+  private int maxNodes;
+  private int maxThrees;
+  private long solves;
+  private long proofs;
+  private int nodes; // searched in the current solve
+  private int attacker;
+  private int rootPly;
+  private boolean aborted;
+  private boolean cut; // whether threes were cut by the depth limit
+
+
+  public MnkGameThreatSolver(MnkGame game) {
+    super(game);
+    this.game = game;
+    k = game.getK();
+    int squares = game.getSquares();
+    geometry = game.getGeometry();
+    windows = new int[geometry.getWindows()];
+    windowMarks = new int[geometry.getWindows()];
+
+    moveBuffers = new int[squares + 1][];
+    pv = new int[squares + 1][squares + 1];
+    pvLength = new int[squares + 1];
+    plies = new int[squares + 1];
+    marks = new int[squares];
+    hits = new int[squares];
+    hitMarks = new int[squares];
+    hitSquares = new int[squares];
+    maxNodes = DEFAULT_MAX_NODES;
+    maxThrees = Integer.MAX_VALUE;
+  }
+
+
+  /**
+   * Sets the number of nodes after which a search gives up.
+   *
+   * @param nodes   Maximum nodes per call to {@link #solve()}
+   */
+  public void setMaxNodes(int nodes) {
+    if (nodes <= 0)
+      throw new IllegalArgumentException("Non-positive nodes: " + nodes);
+    maxNodes = nodes;
+  }
+
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * Sets the number of threes a win may take, in any line. With none, only
+   * wins by continuous fours are found.
+   *
+   * @param threes    Maximum threes of a win
+   */
+  public void setMaxThrees(int threes) {
+    if (threes < 0)
+      throw new IllegalArgumentException("Negative threes: " + threes);
+    maxThrees = threes;
+  }
+
+  public int getMaxThrees() {
+    return maxThrees;
+  }
+
+  /**
+   * Sets the table the results of positions are kept in, e.g. one of its
+   * own, so as not to replace the entries of another search.
+   *
+   * @param table   Transposition table, or null for none
+   */
+  public void setTranspositionTable(MnkGameTranspositionTable table) {
+    this.table = table;
+  }
+
+  public MnkGameTranspositionTable getTranspositionTable() {
+    return table;
+  }
+
+  /**
+   * Gets the number of searches so far, i.e. of calls to {@link #solve()}.
+   *
+   * @return    Number of searches
+   */
+  public long getSolveCount() {
+    return solves;
+  }
+
+  /**
+   * Gets the number of searches so far that found a win.
+   *
+   * @return    Number of wins found
+   */
+  public long getProofCount() {
+    return proofs;
+  }
+
+  /**
+   * Searches for a forced win of the player to move.
+   *
+   * @return    Proven win, or null if none was found (see the class
+   *            description), or the game is not supported
+   */
+  @Override
+  public MnkGameSearcher.Result solve() {
+    solves++;
+    if (game.isGameOver() || game.hasDropMoves() || game.getTurnMoves() != 1
+        || game.getTurnRemainingMoves() != 1)
+      return null;
+    attacker = game.getCurrentPlayer();
+    rootPly = game.getElapsedPly();
+    nodes = 0;
+    aborted = false;
+    int lastThrees = Math.min(maxThrees, (game.getSquares() - rootPly) / 2);
+    for (int threes = 0; threes <= lastThrees; threes++) {
+      cut = false;
+      if (attack(threes)) {
+        proofs++;
+        return createResult(attacker, getLine(), plies[0]);
+      }
+      if (aborted || !cut)
+        break;
+    }
+    return null;
+  }
+
+
+  /* Searches for a win of the attacker, to move, with at most the number
+   * of threes, looking it up in and storing it to the table if any. */
+  private boolean attack(int threes) {
+    int depth = game.getElapsedPly() - rootPly;
+    pvLength[depth] = 0;
+    if (!visit())
+      return false;
+    // not at the root, whose line must start with a move
+    boolean useTable = table != null && depth > 0
+        && threes < MnkGameTranspositionTable.MAX_DEPTH;
+    long hash = game.getHash();
+    if (useTable) {
+      long entry = table.probe(hash);
+      if (entry != MnkGameTranspositionTable.NO_ENTRY) {
+        // wins hold with more threes, and their absence with fewer
+        int entryThrees = MnkGameTranspositionTable.getDepth(entry);
+        if (MnkGameTranspositionTable.isProvenResult(entry)) {
+          if (entryThrees <= threes) {
+            plies[depth] = MnkGameTranspositionTable.getScore(entry);
+            return true;
+          }
+        } else if (entryThrees >= threes) {
+          if (entryThrees < MnkGameTranspositionTable.MAX_DEPTH)
+            cut = true;
+          return false;
+        }
+      }
+    }
+
+    boolean cutBefore = cut;
+    cut = false;
+    boolean won = attack(threes, depth);
+    if (useTable && !aborted) {
+      if (won) {
+        table.store(hash, (pvLength[depth] > 0) ? pv[depth][0] : -1,
+            plies[depth], MnkGameTranspositionTable.BOUND_EXACT, threes, true);
+      } else {
+        table.store(hash, -1, 0, MnkGameTranspositionTable.BOUND_UPPER,
+            cut ? threes : MnkGameTranspositionTable.MAX_DEPTH, false);
+      }
+    }
+    cut |= cutBefore;
+    return won;
+  }
+
+  /* Searches the threats of the attacker, to move, at the depth. */
+  private boolean attack(int threes, int depth) {
+    int[] moves = getMoveBuffer(depth);
+    if (findWins(attacker, moves) > 0) {
+      pvLength[depth + 1] = 0;
+      plies[depth + 1] = 0;
+      updatePv(depth, moves[0]);
+      return true;
+    }
+    int numMoves;
+    int numFours;
+    int defenses = findWins(-attacker, moves);
+    if (defenses > 1)
+      return false;
+    if (defenses == 1) {
+      // the attacker must block, so only continue if the block is a threat
+      numMoves = 1;
+      numFours = countWindows(moves[0], attacker, k - 2) > 0 ? 1 : 0;
+      if (numFours == 0 && countWindows(moves[0], attacker, k - 3) == 0)
+        return false;
+    } else {
+      stamp++;
+      numFours = markWindowSquares(moves, 0, attacker, k - 2);
+      numMoves = markWindowSquares(moves, numFours, attacker, k - 3);
+    }
+
+    for (int i = 0; i < numMoves; i++) {
+      boolean four = i < numFours;
+      if (!four && threes <= 0) {
+        cut = true;
+        break;
+      }
+      game.doMove(moves[i], false);
+      boolean won = defend(four ? threes : threes - 1);
+      game.undoMove(false);
+      if (won) {
+        updatePv(depth, moves[i]);
+        return true;
+      }
+      if (aborted)
+        return false;
+    }
+    return false;
+  }
+
+  /* Searches whether the defender, to move, loses to the attacker's
+   * threats with at most the number of threes. */
+  private boolean defend(int threes) {
+    int depth = game.getElapsedPly() - rootPly;
+    pvLength[depth] = 0;
+    if (!visit())
+      return false;
+    int[] moves = getMoveBuffer(depth);
+
+    if (findWins(-attacker, moves) > 0)
+      return false;
+    int numMoves = findWins(attacker, moves);
+    if (numMoves > 1) {
+      // double four: whichever is blocked, the other wins
+      pvLength[depth + 2] = 0;
+      plies[depth + 2] = 0;
+      updatePv(depth + 1, moves[1]);
+      updatePv(depth, moves[0]);
+      return true;
+    }
+    if (numMoves == 0) {
+      // a three: answer the attacker's double fours, or make a four
+      numMoves = markDoubleFourAnswers(moves);
+      if (numMoves == 0)
+        return false;
+      numMoves = markWindowSquares(moves, numMoves, -attacker, k - 2);
+    }
+
+    int bestPlies = -1;
+    for (int i = 0; i < numMoves; i++) {
+      game.doMove(moves[i], false);
+      boolean won = attack(threes);
+      game.undoMove(false);
+      if (!won)
+        return false;
+      // keep the longest defense for the line
+      if (plies[depth + 1] > bestPlies) {
+        bestPlies = plies[depth + 1];
+        updatePv(depth, moves[i]);
+      }
+    }
+    return bestPlies >= 0;
+  }
+
+  /* Counts a node, returning false if the search should give up. */
+  private boolean visit() {
+    incrementNodeCount();
+    if (++nodes > maxNodes || Thread.currentThread().isInterrupted())
+      aborted = true;
+    return !aborted;
+  }
+
+  /* Finds up to two squares that would win for the player, returning how
+   * many were found. */
+  private int findWins(int player, int[] wins) {
+    int numWins = Math.min(game.getWinningSquares(player), 2);
+    for (int i = 0; i < numWins; i++)
+      wins[i] = game.getWinningSquare(player, i);
+    return numWins;
+  }
+
+  /* Adds the unmarked empty squares of the windows in which the player has
+   * the number of pieces and the opponent none, returning the new count. */
+  private int markWindowSquares(int[] moves, int numMoves, int player,
+      int pieces) {
+    if (pieces < 0)
+      return numMoves;
+    int numWindows = collectWindows(player, pieces);
+    for (int j = 0; j < numWindows; j++) {
+      int window = windows[j];
+      for (int i = 0; i < k; i++)
+        numMoves = mark(moves, numMoves, geometry.getWindowSquare(window, i));
+    }
+    return numMoves;
+  }
+
+  /* Adds the squares that answer every double four the attacker could
+   * make, i.e. that are in the windows of each, returning the count. Any
+   * other answer leaves a double four, unless it makes a four. */
+  private int markDoubleFourAnswers(int[] moves) {
+    int doubleFours = 0;
+    int numHitSquares = 0;
+    stamp++;
+    int numWindows = collectWindows(attacker, k - 2);
+    for (int j = 0; j < numWindows; j++) {
+      for (int i = 0; i < k; i++) {
+        int square = geometry.getWindowSquare(windows[j], i);
+        if (game.getPiece(square) != MnkGame.PLAYER_NONE
+            || marks[square] == stamp)
+          continue;
+        marks[square] = stamp;
+        if (!isDoubleFour(square))
+          continue;
+        doubleFours++;
+        hitStamp++;
+        numHitSquares = hit(numHitSquares, square);
+        for (int l = 0; l < geometry.getSquareWindows(square); l++) {
+          int w = geometry.getSquareWindow(square, l);
+          if (!isOpen(w, attacker, k - 2))
+            continue;
+          for (int h = 0; h < k; h++) {
+            int s = geometry.getWindowSquare(w, h);
+            if (game.getPiece(s) == MnkGame.PLAYER_NONE)
+              numHitSquares = hit(numHitSquares, s);
+          }
+        }
+      }
+    }
+    stamp++;
+    int numMoves = 0;
+    for (int i = 0; i < numHitSquares; i++) {
+      int square = hitSquares[i];
+      if (hits[square] == doubleFours)
+        numMoves = mark(moves, numMoves, square);
+      hits[square] = 0;
+    }
+    return numMoves;
+  }
+
+  /* Counts the square as answering the current double four, once. */
+  private int hit(int numHitSquares, int square) {
+    if (hitMarks[square] == hitStamp)
+      return numHitSquares;
+    hitMarks[square] = hitStamp;
+    if (hits[square]++ == 0)
+      hitSquares[numHitSquares++] = square;
+    return numHitSquares;
+  }
+
+  /* Checks if a move at the square would leave two different squares to
+   * complete a window. */
+  private boolean isDoubleFour(int square) {
+    int first = -1;
+    for (int j = 0; j < geometry.getSquareWindows(square); j++) {
+      int window = geometry.getSquareWindow(square, j);
+      if (!isOpen(window, attacker, k - 2))
+        continue;
+      for (int i = 0; i < k; i++) {
+        int s = geometry.getWindowSquare(window, i);
+        if (s == square || game.getPiece(s) != MnkGame.PLAYER_NONE)
+          continue;
+        if (first < 0) {
+          first = s;
+        } else if (s != first) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /* Adds the square to the moves if empty and not yet marked. */
+  private int mark(int[] moves, int numMoves, int square) {
+    if (marks[square] != stamp && game.getPiece(square) == MnkGame.PLAYER_NONE) {
+      marks[square] = stamp;
+      moves[numMoves++] = square;
+    }
+    return numMoves;
+  }
+
+  /* Counts the windows through the square in which the player has the
+   * number of pieces and the opponent none. */
+  private int countWindows(int square, int player, int pieces) {
+    int count = 0;
+    for (int i = 0; i < geometry.getSquareWindows(square); i++) {
+      if (isOpen(geometry.getSquareWindow(square, i), player, pieces))
+        count++;
+    }
+    return count;
+  }
+
+  /* Collects the windows in which the player has the number of pieces and
+   * the opponent none into the windows array, returning how many. Unless
+   * empty, they are found through the player's pieces, not the whole board. */
+  private int collectWindows(int player, int pieces) {
+    windowStamp++;
+    int numWindows = 0;
+    if (pieces == 0) {
+      for (int window = 0; window < windows.length; window++) {
+        if (isOpen(window, player, 0))
+          windows[numWindows++] = window;
+      }
+      return numWindows;
+    }
+    for (int ply = 0; ply < game.getElapsedPly(); ply++) {
+      int square = game.getHistory(ply);
+      if (game.getPiece(square) != player)
+        continue;
+      for (int i = 0; i < geometry.getSquareWindows(square); i++) {
+        int window = geometry.getSquareWindow(square, i);
+        if (windowMarks[window] == windowStamp)
+          continue;
+        windowMarks[window] = windowStamp;
+        if (isOpen(window, player, pieces))
+          windows[numWindows++] = window;
+      }
+    }
+    return numWindows;
+  }
+
+  /* Checks if the player has the number of pieces in the window, and the
+   * opponent none. */
+  private boolean isOpen(int window, int player, int pieces) {
+    return game.getWindowPieces(window, player) == pieces
+        && game.getWindowPieces(window, -player) == 0;
+  }
+
+  private int[] getMoveBuffer(int depth) {
+    if (moveBuffers[depth] == null)
+      moveBuffers[depth] = new int[game.getSquares()];
+    return moveBuffers[depth];
+  }
+
+  /* Sets the line of the depth to the move followed by the line of the
+   * next depth. */
+  private void updatePv(int depth, int move) {
+    pv[depth][0] = move;
+    System.arraycopy(pv[depth + 1], 0, pv[depth], 1, pvLength[depth + 1]);
+    pvLength[depth] = pvLength[depth + 1] + 1;
+    plies[depth] = plies[depth + 1] + 1;
+  }
+
+  private List<Integer> getLine() {
+    List<Integer> line = new ArrayList<>(pvLength[0]);
+    for (int i = 0; i < pvLength[0]; i++)
+      line.add(pv[0][i]);
+    return line;
+  }
+}
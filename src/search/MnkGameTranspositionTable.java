@@ -0,0 +1,265 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+/**
+ * The MnkGameTranspositionTable class caches search results by position
+ * hash, so that positions reached through different move orders are not
+ * searched again.
+ * <p>
+ * The table has a fixed size, given in megabytes, and stores each entry as
+ * two longs: the position hash XOR-ed with the entry data, and the data
+ * itself. The data packs the score, bound type, depth, proof flag and best
+ * move of the entry (see {@link #getScore(long)} and the other static
+ * accessors). Entries are grouped in buckets of two: the first slot keeps
+ * the deepest entry of the current search, the second is always replaced.
+ * <p>
+ * No locks are used, so the table can be shared by several searchers on
+ * different threads. An entry torn by concurrent writes fails the XOR check
+ * and is treated as a miss. The statistics counters are not synchronized,
+ * and so only approximate when the table is shared.
+ */
+public class MnkGameTranspositionTable {
+
+  /** Bound type of an entry whose score is exact. */
+  public static final int BOUND_EXACT = 1;
+  /** Bound type of an entry whose score is a lower bound (failed high). */
+  public static final int BOUND_LOWER = 2;
+  /** Bound type of an entry whose score is an upper bound (failed low). */
+  public static final int BOUND_UPPER = 3;
+
+  /** Greatest depth an entry can record; deeper results are stored as it. */
+  public static final int MAX_DEPTH = (1 << 6) - 1;
+
+  /** Entry data returned by {@link #probe(long)} on a miss. */
+  public static final long NO_ENTRY = 0;
+
+  // Data layout: move + 1 (20 bits), depth (6), bound (2), proof (1),
+  // generation (3), score (32)
+  private static final int DEPTH_SHIFT = 20;
+  private static final int BOUND_SHIFT = 26;
+  private static final int PROOF_SHIFT = 28;
+  private static final int GENERATION_SHIFT = 29;
+  private static final int SCORE_SHIFT = 32;
+  private static final int GENERATIONS = 1 << 3;
+
+  private static final int SAMPLE_BUCKETS = 1000;
+
+
+  private final long[] table; // key ^ data, data; two slots per bucket
+  private final int mask; // number of buckets - 1
+  private int generation;
+
+  private long probes, hits, stores;
+
+
+  /**
+   * Constructs an empty table of (at most) the specified size.
+   *
+   * @param megabytes   Size of the table in megabytes
+   */
+  public MnkGameTranspositionTable(int megabytes) {
+    if (megabytes <= 0)
+      throw new IllegalArgumentException("Non-positive size: " + megabytes);
+    long buckets = Long.highestOneBit(megabytes * (1L << 20) / 32);
+    buckets = Math.min(buckets, 1 << 27); // array length limit
+    table = new long[(int) buckets * 4];
+    mask = (int) buckets - 1;
+    generation = 0;
+  }
+
+
+  /**
+   * Gets the score of an entry.
+   *
+   * @param entry   Entry data, as returned by {@link #probe(long)}
+   * @return        Score of the entry
+   */
+  public static int getScore(long entry) {
+    return (int) (entry >> SCORE_SHIFT);
+  }
+
+  /**
+   * Gets the bound type of an entry.
+   *
+   * @param entry   Entry data, as returned by {@link #probe(long)}
+   * @return        One of {@link #BOUND_EXACT}, {@link #BOUND_LOWER} and
+   *                {@link #BOUND_UPPER}
+   */
+  public static int getBound(long entry) {
+    return (int) (entry >>> BOUND_SHIFT) & 3;
+  }
+
+  /**
+   * Gets the search depth of an entry.
+   *
+   * @param entry   Entry data, as returned by {@link #probe(long)}
+   * @return        Depth the entry was searched to
+   */
+  public static int getDepth(long entry) {
+    return (int) (entry >>> DEPTH_SHIFT) & MAX_DEPTH;
+  }
+
+  /**
+   * Gets the best move of an entry.
+   *
+   * @param entry   Entry data, as returned by {@link #probe(long)}
+   * @return        Square index of the best move, or -1 if none is known
+   */
+  public static int getMove(long entry) {
+    return (int) (entry & ((1 << DEPTH_SHIFT) - 1)) - 1;
+  }
+
+  /**
+   * Gets whether the score of an entry is a proven game result.
+   *
+   * @param entry   Entry data, as returned by {@link #probe(long)}
+   * @return        True if the score is proven; false otherwise
+   */
+  public static boolean isProvenResult(long entry) {
+    return (entry >>> PROOF_SHIFT & 1) != 0;
+  }
+
+  /**
+   * Looks up the entry for a position.
+   *
+   * @param hash    Hash of the position
+   * @return        Entry data, or {@link #NO_ENTRY} if there is none
+   */
+  public long probe(long hash) {
+    probes++;
+    int i = index(hash);
+    for (int j = i; j < i + 4; j += 2) {
+      long data = table[j + 1];
+      if ((table[j] ^ data) == hash && data != NO_ENTRY) {
+        hits++;
+        return data;
+      }
+    }
+    return NO_ENTRY;
+  }
+
+  /**
+   * Stores the result of searching a position.
+   *
+   * @param hash    Hash of the position
+   * @param move    Square index of the best move, or -1 if none is known
+   * @param score   Score of the position
+   * @param bound   Bound type of the score
+   * @param depth   Depth the position was searched to
+   * @param proof   Iff true, the score is a proven game result
+   */
+  public void store(long hash, int move, int score, int bound, int depth,
+      boolean proof) {
+    stores++;
+    long data = ((long) score << SCORE_SHIFT)
+        | ((long) generation << GENERATION_SHIFT)
+        | ((proof ? 1L : 0L) << PROOF_SHIFT)
+        | ((long) bound << BOUND_SHIFT)
+        | ((long) Math.min(depth, MAX_DEPTH) << DEPTH_SHIFT)
+        | ((move + 1) & ((1 << DEPTH_SHIFT) - 1));
+    int i = index(hash);
+    long old = table[i + 1];
+    if (old == NO_ENTRY || (table[i] ^ old) == hash
+        || getGeneration(old) != generation || getDepth(old) <= depth) {
+      table[i] = hash ^ data; // depth-preferred slot
+      table[i + 1] = data;
+    } else {
+      table[i + 2] = hash ^ data; // always-replace slot
+      table[i + 3] = data;
+    }
+  }
+
+  /**
+   * Starts a new search, e.g. for the next move of a game.
+   * <p>
+   * Entries from earlier searches stay usable, but no longer take
+   * precedence in the depth-preferred slots. The statistics are reset.
+   */
+  public void newSearch() {
+    generation = (generation + 1) % GENERATIONS;
+    probes = hits = stores = 0;
+  }
+
+  /**
+   * Removes all entries and resets the statistics.
+   */
+  public void clear() {
+    for (int i = 0; i < table.length; i++)
+      table[i] = 0;
+    probes = hits = stores = 0;
+  }
+
+  /**
+   * Gets the number of entries the table can hold.
+   *
+   * @return    Capacity of the table
+   */
+  public int getCapacity() {
+    return table.length / 2;
+  }
+
+  /**
+   * Gets the number of lookups since the last new search.
+   *
+   * @return    Number of calls to {@link #probe(long)}
+   */
+  public long getProbes() {
+    return probes;
+  }
+
+  /**
+   * Gets the number of successful lookups since the last new search.
+   *
+   * @return    Number of calls to {@link #probe(long)} that found an entry
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of stores since the last new search.
+   *
+   * @return    Number of calls to {@link #store}
+   */
+  public long getStores() {
+    return stores;
+  }
+
+  /**
+   * Gets the fraction of lookups that found an entry.
+   *
+   * @return    Hits divided by probes, or 0 if there were no probes
+   */
+  public double getHitRate() {
+    return (probes == 0) ? 0 : hits / (double) probes;
+  }
+
+  /**
+   * Gets the fraction of slots holding entries of the current search,
+   * estimated from the first thousand buckets.
+   *
+   * @return    Approximate fill ratio, between 0 and 1
+   */
+  public double getFillRate() {
+    int buckets = Math.min(SAMPLE_BUCKETS, mask + 1);
+    int filled = 0;
+    for (int i = 1; i < buckets * 4; i += 2) {
+      if (table[i] != NO_ENTRY && getGeneration(table[i]) == generation)
+        filled++;
+    }
+    return filled / (buckets * 2.0);
+  }
+
+
+  /* Gets the index of the first slot of the position's bucket. */
+  private int index(long hash) {
+    return ((int) (hash ^ (hash >>> 32)) & mask) * 4;
+  }
+
+  /* Gets the search generation an entry was stored in. */
+  private static int getGeneration(long entry) {
+    return (int) (entry >>> GENERATION_SHIFT) & (GENERATIONS - 1);
+  }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright 2015 Vance Zuo
+ */
+package search;
+
+import eval.MnkGameEvaluator;
+import game.MnkGame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MnkGameYbwSearcher class is a parallel alpha-beta searcher using the
+ * "Young Brothers Wait" concept.
+ * <p>
+ * At each node, the eldest child is searched first on the current thread.
+ * Unless it causes a cutoff, the younger siblings are then split off as
+ * fork-join tasks that share the node's window: each sibling narrows it
+ * when it finishes, and a cutoff stops the siblings (and their subtrees)
+ * that are still searching. Every worker thread searches its own copy of
+ * the game, brought to the position of each task it runs, with its own move
+ * buffers and triangular table of principal variations. These are indexed
+ * by the nesting of the nodes on the thread's stack rather than by ply, as
+ * a thread joining a split point may run other tasks, at any ply, on top of
+ * the nodes it is in the middle of.
+ */
+public class MnkGameYbwSearcher extends MnkGameSearcher {
+
+  /** Least remaining depth of a node whose younger siblings are split. */
+  public static final int MIN_SPLIT_DEPTH = 2;
+
+  /* Copy of the game, and its search state, for one worker thread. */
+  private class Worker {
+    final MnkGame game;
+    final MnkGameEvaluator eval;
+    int[][] moveBuffers; // per frame, allocated on first use
+    int[][] pv; // triangular table of principal variations, per frame
+    int[] pvLength;
+    int frame; // of the next node entered, i.e. nodes on the thread's stack
+    boolean proof; // whether the score the last search returned is proven
+    long nodes;
+
+    public Worker() {
+      game = new MnkGame(getGame());
+      eval = createEvaluator(game);
+      moveBuffers = new int[game.getSquares() + 1][];
+      pv = new int[game.getSquares() + 1][];
+      pvLength = new int[game.getSquares() + 1];
+    }
+
+    /* Brings the game to the position after the moves in the path. */
+    public void sync(int[] path) {
+      int common = 0;
+      while (common < game.getElapsedPly() && common < path.length
+          && game.getHistory(common) == path[common])
+        common++;
+      while (game.getElapsedPly() > common)
+        game.undoMove(false);
+      for (int i = common; i < path.length; i++)
+        game.doMove(path[i], false);
+    }
+
+    /* Enters a node, returning its frame, with an empty principal
+     * variation. */
+    public int enter() {
+      if (frame == pvLength.length) {
+        moveBuffers = Arrays.copyOf(moveBuffers, 2 * frame);
+        pv = Arrays.copyOf(pv, 2 * frame);
+        pvLength = Arrays.copyOf(pvLength, 2 * frame);
+      }
+      if (pv[frame] == null)
+        pv[frame] = new int[game.getSquares()];
+      pvLength[frame] = 0;
+      return frame++;
+    }
+
+    public int[] getMoveBuffer(int frame) {
+      if (moveBuffers[frame] == null)
+        moveBuffers[frame] = new int[game.getSquares()];
+      return moveBuffers[frame];
+    }
+
+    /* Sets the principal variation of the frame to the move, followed by
+     * the principal variation left by the move's child node. */
+    public void updatePv(int frame, int move) {
+      int length = pvLength[frame + 1];
+      pv[frame][0] = move;
+      System.arraycopy(pv[frame + 1], 0, pv[frame], 1, length);
+      pvLength[frame] = length + 1;
+    }
+  }
+
+  /* Node whose younger siblings are being searched in parallel. */
+  private static class SplitPoint {
+    final SplitPoint parent;
+    final boolean maxi;
+    int alpha, beta;
+    final int[] pv;
+    int pvLength;
+    boolean proof;
+    volatile boolean cutoff;
+
+    public SplitPoint(SplitPoint parent, boolean maxi, int alpha, int beta,
+        int depth, int[] pv, int pvLength, boolean proof) {
+      this.parent = parent;
+      this.maxi = maxi;
+      this.alpha = alpha;
+      this.beta = beta;
+      this.pv = new int[depth]; // a line is at most as long as its depth
+      System.arraycopy(pv, 0, this.pv, 0, pvLength);
+      this.pvLength = pvLength;
+      this.proof = proof;
+    }
+
+    public synchronized int getAlpha() {
+      return alpha;
+    }
+
+    public synchronized int getBeta() {
+      return beta;
+    }
+
+    /* Narrows the window with a sibling's score, taking the sibling's
+     * principal variation, below the move, if it is the best so far. */
+    public synchronized void update(int move, int score, boolean proof,
+        int[] line, int lineLength) {
+      if (cutoff || !(maxi ? score > alpha : score < beta))
+        return;
+      if (maxi) alpha = score; else beta = score;
+      this.proof = proof;
+      if (alpha >= beta) {
+        cutoff = true;
+        return;
+      }
+      pv[0] = move;
+      System.arraycopy(line, 0, pv, 1, lineLength);
+      pvLength = lineLength + 1;
+    }
+
+    /* Checks if this or any enclosing split point has been cut off. */
+    public boolean isAborted() {
+      for (SplitPoint sp = this; sp != null; sp = sp.parent) {
+        if (sp.cutoff)
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /* Searches the game from the root position. */
+  private class RootTask extends RecursiveTask<Result> {
+    private static final long serialVersionUID = 1L;
+    private final int[] path;
+    private final int depth;
+
+    public RootTask(int[] path, int depth) {
+      this.path = path;
+      this.depth = depth;
+    }
+
+    @Override
+    protected Result compute() {
+      Worker w = workers.get();
+      w.sync(path);
+      int frame = w.frame;
+      int score = search(w, depth, MnkGameEvaluator.MIN_SCORE - 1,
+          MnkGameEvaluator.MAX_SCORE + 1, null);
+      if (stopped)
+        return null;
+      List<Integer> line = new ArrayList<>(w.pvLength[frame]);
+      for (int i = 0; i < w.pvLength[frame]; i++)
+        line.add(w.pv[frame][i]);
+      return new Result(score, line, w.proof);
+    }
+  }
+
+  /* Searches one younger sibling of a split point. */
+  private class SiblingTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final SplitPoint split;
+    private final int[] path;
+    private final int move;
+    private final int depth;
+
+    public SiblingTask(SplitPoint split, int[] path, int move, int depth) {
+      this.split = split;
+      this.path = path;
+      this.move = move;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      if (stopped || split.isAborted())
+        return;
+      Worker w = workers.get();
+      w.sync(path);
+      w.game.doMove(move, false);
+      int frame = w.frame;
+      int score = search(w, depth, split.getAlpha(), split.getBeta(), split);
+      w.game.undoMove(false);
+      if (!stopped && !split.isAborted())
+        split.update(move, score, w.proof, w.pv[frame], w.pvLength[frame]);
+    }
+  }
+
+
+  private ThreadLocal<Worker> workers; // of the current pool's threads
+  private final Queue<Worker> allWorkers;
+  private ForkJoinPool pool;
+  private volatile boolean stopped;
+
+
+  public MnkGameYbwSearcher(MnkGame game,
+      Class<? extends MnkGameEvaluator> eval) {
+    super(game, eval);
+    allWorkers = new ConcurrentLinkedQueue<>();
+    workers = createWorkers();
+    pool = new ForkJoinPool();
+  }
+
+
+  /**
+   * Sets the number of worker threads. Any search in progress finishes on
+   * the previous threads first, and their workers are then discarded.
+   *
+   * @param threads   Number of threads to search with
+   */
+  public void setParallelism(int threads) {
+    if (threads == pool.getParallelism())
+      return;
+    shutdown();
+    allWorkers.clear();
+    workers = createWorkers();
+    pool = new ForkJoinPool(threads);
+  }
+
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Stops the worker threads, waiting for any search in progress to finish
+   * on them first.
+   */
+  @Override
+  public void shutdown() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public Result search(int depth) {
+    stopped = false;
+    RootTask root = new RootTask(getGame().getHistory(), depth);
+    pool.execute(root);
+    Result result;
+    try {
+      result = root.get();
+    } catch (InterruptedException e) {
+      stopped = true;
+      root.quietlyJoin(); // let the workers unwind before returning
+      Thread.currentThread().interrupt();
+      result = null;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    for (Worker w : allWorkers) {
+      addNodeCount(w.nodes);
+      w.nodes = 0;
+    }
+    return result;
+  }
+
+
+  /* Creates the thread-local workers, each listed in allWorkers when its
+   * thread first searches. */
+  private ThreadLocal<Worker> createWorkers() {
+    return new ThreadLocal<Worker>() {
+      @Override
+      protected Worker initialValue() {
+        Worker w = new Worker();
+        allWorkers.add(w);
+        return w;
+      }
+    };
+  }
+
+  /* Searches the worker's game in a new frame, returning the position's
+   * score, with whether it is proven left in the worker's proof field and
+   * the principal variation in the frame's row of its table. Scores of
+   * searches stopped or cut off by a split point are meaningless; callers
+   * check for that themselves. */
+  private int search(Worker w, int depth, int alpha, int beta,
+      SplitPoint sp) {
+    int frame = w.enter();
+    try {
+      return search(w, frame, depth, alpha, beta, sp);
+    } finally {
+      w.frame = frame;
+    }
+  }
+
+  private int search(Worker w, int frame, int depth, int alpha, int beta,
+      SplitPoint sp) {
+    w.nodes++;
+
+    MnkGame game = w.game;
+    if (game.isGameOver()) {
+      w.proof = true;
+      return w.eval.evaluate();
+    }
+    if (depth <= 0) {
+      w.proof = false;
+      return w.eval.evaluate();
+    }
+
+    boolean maxi = game.getCurrentPlayer() == MnkGameEvaluator.PLAYER_MAX;
+    boolean split = depth >= MIN_SPLIT_DEPTH;
+
+    boolean proof = false;
+    int[] moves = w.getMoveBuffer(frame);
+    int numMoves = 1;
+    moves[0] = getForcedMove(game);
+    if (moves[0] < 0)
+      numMoves = game.generatePseudolegalMoves(moves);
+    int i = 0;
+    for (; i < numMoves && (i == 0 || !split); i++) {
+      int move = moves[i];
+      game.doMove(move, false);
+      int score = search(w, depth - 1, alpha, beta, sp);
+      game.undoMove(false);
+      if (stopped || (sp != null && sp.isAborted()))
+        return 0;
+      if (maxi ? score > alpha : score < beta) {
+        if (maxi) alpha = score; else beta = score;
+        proof = w.proof;
+        if (alpha >= beta)
+          break;
+        w.updatePv(frame, move);
+      }
+    }
+
+    if (i < numMoves && alpha < beta) {
+      SplitPoint point = new SplitPoint(sp, maxi, alpha, beta, depth,
+          w.pv[frame], w.pvLength[frame], proof);
+      int[] path = game.getHistory();
+      List<SiblingTask> tasks = new ArrayList<>(numMoves - i);
+      for (; i < numMoves; i++)
+        tasks.add(new SiblingTask(point, path, moves[i], depth - 1));
+      ForkJoinTask.invokeAll(tasks);
+      w.sync(path); // running other tasks while joining moves the game
+      if (stopped || (sp != null && sp.isAborted()))
+        return 0;
+      synchronized (point) {
+        alpha = point.alpha;
+        beta = point.beta;
+        proof = point.proof;
+        System.arraycopy(point.pv, 0, w.pv[frame], 0, point.pvLength);
+        w.pvLength[frame] = point.pvLength;
+      }
+    }
+
+    int score = maxi ? alpha : beta;
+    if (score == MnkGameEvaluator.MIN_SCORE + depth - 1) {
+      score++;
+    } else if (score == MnkGameEvaluator.MAX_SCORE - depth + 1) {
+      score--;
+    }
+
+    w.proof = proof;
+    return score;
+  }
+
+}